@@ -5,9 +5,14 @@ import org.neo4j.driver.AuthTokens;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.GraphDatabase;
 import org.neo4j.driver.Session;
+import org.reactome.server.graph.interactors.ImportJournal;
+import org.reactome.server.graph.interactors.ImportPlan;
 import org.reactome.server.graph.interactors.InteractionImporter;
+import org.reactome.server.graph.interactors.JournalReplayer;
+import org.reactome.server.graph.utils.AdaptiveBatchSize;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * @author Florian Korninger (florian.korninger@ebi.ac.uk)
@@ -25,15 +30,37 @@ public class Main {
                         new FlaggedOption(  "name",         JSAP.STRING_PARSER,   "reactome",           JSAP.NOT_REQUIRED, 'd', "name",         "The reactome database name to connect to"),
                         new FlaggedOption(  "user",         JSAP.STRING_PARSER,   "neo4j",              JSAP.NOT_REQUIRED, 'u', "user",         "The database user"),
                         new FlaggedOption(  "password",     JSAP.STRING_PARSER,   "odd",                JSAP.NOT_REQUIRED, 'p', "password",     "The password to connect to the database"),
-                        new FlaggedOption(  "intactFile",   JSAP.STRING_PARSER,   DEFAULT_INTACT_FILE,      JSAP.NOT_REQUIRED, 'f', "intactFile",   "Path to the interaction data file"),
+                        new FlaggedOption(  "intactFile",   JSAP.STRING_PARSER,   DEFAULT_INTACT_FILE,      JSAP.NOT_REQUIRED, 'f', "intactFile",   "Path to the interaction data file (gzip or zip compressed files are decompressed on the fly)"),
                         new QualifiedSwitch("sqlLite",      JSAP.BOOLEAN_PARSER,  JSAP.NO_DEFAULT,          JSAP.NOT_REQUIRED, 'q', "sqlLite",      "Whether the provided file is an SQLite database or a intact-micluster.txt file to be parsed"),
-                        new QualifiedSwitch("bar",          JSAP.BOOLEAN_PARSER,  JSAP.NO_DEFAULT,          JSAP.NOT_REQUIRED, 'b', "bar",          "Forces final status")
+                        new QualifiedSwitch("bar",          JSAP.BOOLEAN_PARSER,  JSAP.NO_DEFAULT,          JSAP.NOT_REQUIRED, 'b', "bar",          "Forces final status"),
+                        new QualifiedSwitch("plan",         JSAP.BOOLEAN_PARSER,  JSAP.NO_DEFAULT,          JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "plan", "Computes the changes and cost of the import without writing to the graph (the write rate is probed in a write transaction that is rolled back)"),
+                        new QualifiedSwitch("externalMemory", JSAP.BOOLEAN_PARSER, JSAP.NO_DEFAULT,         JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "externalMemory", "Plans the interactions in temporary files to keep the heap bounded"),
+                        new FlaggedOption(  "journal",      JSAP.STRING_PARSER,   JSAP.NO_DEFAULT,          JSAP.NOT_REQUIRED, 'j', "journal",      "Records the import operations to this file (gzipped if it ends with .gz) so they can be replayed"),
+                        new FlaggedOption(  "replay",       JSAP.STRING_PARSER,   JSAP.NO_DEFAULT,          JSAP.NOT_REQUIRED, 'r', "replay",       "Replays a previously recorded import journal instead of running the import"),
+                        new FlaggedOption(  "minBatchSize", JSAP.INTEGER_PARSER,  "" + AdaptiveBatchSize.DEFAULT_MIN, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "minBatchSize", "Lower bound of the adaptive write batch size"),
+                        new FlaggedOption(  "maxBatchSize", JSAP.INTEGER_PARSER,  "" + AdaptiveBatchSize.DEFAULT_MAX, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "maxBatchSize", "Upper bound of the adaptive write batch size")
                 }
         );
 
         JSAPResult config = jsap.parse(args);
         if (jsap.messagePrinted()) System.exit(EXIT_FAILURE);
 
+        //Replicas sharing the same baseline can be populated from the journal recorded by a previous import
+        String replayFile = config.getString("replay");
+        if (replayFile != null) {
+            if (!new File(replayFile).isFile()) {
+                System.err.println(replayFile + " does not exist or it is a directory. Please provide the path to the import journal");
+                System.exit(EXIT_FAILURE);
+            }
+            try (Driver driver = getDriver(config); Session session = driver.session()) {
+                new JournalReplayer(replayFile, getBatchSize(config)).replay(session);
+            } catch (IOException | IllegalStateException e) {
+                System.err.println("\nThe import journal could not be replayed: " + e.getMessage());
+                System.exit(EXIT_FAILURE);
+            }
+            return;
+        }
+
         //If only intact file is not provided, the graph-importer will download the interaction data from IntAct
         //The user can specify a location of the file with the interaction content and that will be used
         String intactFile = config.getString("intactFile");
@@ -45,12 +72,39 @@ public class Main {
             }
         }
 
+        //Plan mode does not modify the graph: it reports what the import would create and how long it would take.
+        //The write rate probe needs write access, but its transaction is rolled back (skipped when not allowed)
+        if (config.getBoolean("plan")) {
+            try (Driver driver = getDriver(config); Session session = driver.session()) {
+                ImportPlan plan = session.readTransaction(tx -> new InteractionImporter(
+                        tx,
+                        intactFile,
+                        config.getBoolean("sqlLite")
+                ).plan(tx));
+                plan.probeWriteRate(session);
+                plan.print();
+            }
+            return;
+        }
+
+        String journalFile = config.getString("journal");
+        boolean externalMemory = config.getBoolean("externalMemory");
+        if (externalMemory && journalFile != null) {
+            //The journal translates relationship endpoints to dbIds using the in-memory dbIds map
+            System.err.println("The import journal cannot be recorded in external memory mode");
+            System.exit(EXIT_FAILURE);
+        }
+        ImportJournal importJournal = journalFile != null ? new ImportJournal(journalFile) : null;
+        AdaptiveBatchSize batchSize = getBatchSize(config);
         try (Driver driver = getDriver(config); Session session = driver.session()) {
             session.writeTransaction(tx -> {
                 InteractionImporter interactionImporter = new InteractionImporter(
                         tx,
                         intactFile,
-                        config.getBoolean("sqlLite")
+                        config.getBoolean("sqlLite"),
+                        importJournal,
+                        externalMemory,
+                        batchSize
                 );
 
                 interactionImporter.addInteractionData(tx);
@@ -58,7 +112,29 @@ public class Main {
                 tx.commit();
                 return null;
             });
+        } catch (RuntimeException e) {
+            if (importJournal != null) importJournal.discard();
+            throw e;
+        }
+
+        if (importJournal != null) {
+            try {
+                importJournal.complete();
+            } catch (IOException e) {
+                System.err.println("The import journal " + journalFile + " could not be completed: " + e.getMessage());
+                System.exit(EXIT_FAILURE);
+            }
+        }
+    }
+
+    private static AdaptiveBatchSize getBatchSize(JSAPResult config) {
+        int min = config.getInt("minBatchSize");
+        int max = config.getInt("maxBatchSize");
+        if (min < 1 || max < min) {
+            System.err.println("The batch size bounds must satisfy 1 <= minBatchSize <= maxBatchSize");
+            System.exit(EXIT_FAILURE);
         }
+        return new AdaptiveBatchSize(min, max);
     }
 
     private static Driver getDriver(JSAPResult config) {
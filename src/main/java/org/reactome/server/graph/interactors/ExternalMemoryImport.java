@@ -0,0 +1,432 @@
+package org.reactome.server.graph.interactors;
+
+import org.apache.commons.io.FileUtils;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Transaction;
+import org.reactome.server.graph.interactors.InteractionImporter.NewTarget;
+import org.reactome.server.graph.interactors.InteractionImporter.TargetInteractor;
+import org.reactome.server.graph.utils.EventCounter;
+import org.reactome.server.graph.utils.ExternalSort;
+import org.reactome.server.graph.utils.ExternalSort.RecordReader;
+import org.reactome.server.graph.utils.ExternalSort.RecordWriter;
+import org.reactome.server.graph.utils.ProgressBarUtils;
+import org.reactome.server.interactors.model.Interaction;
+import org.reactome.server.interactors.model.Interactor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.reactome.server.graph.interactors.InteractionImporter.*;
+
+/**
+ * Adds the interaction data keeping a bounded heap regardless of the size of the graph or the interaction data.
+ * <p>
+ * Instead of holding the dbIds, the ReferenceEntity identifiers, the target instances and the added interactions
+ * in memory, every step streams fixed-width records through temporary files:
+ * <ol>
+ *     <li>The target ReferenceEntity instances (sources) and the (identifier -> dbId) and (dbId -> node ID) indexes
+ *         of all the ReferenceEntity instances are streamed from the graph.</li>
+ *     <li>The IntAct interactions of every source are planned: one record per interaction, with the interaction and
+ *         the interactor B fields appended to a separate file.</li>
+ *     <li>The planned interactions are sorted on disk by interaction id keeping the first occurrence only (the sort
+ *         is stable, so that is the first one planned).</li>
+ *     <li>They are sorted by target identifier and merge joined with the identifier index. Targets not present in
+ *         the graph are created at this point (once per identifier, in batches) and added to the (dbId -> node ID)
+ *         index.</li>
+ *     <li>Finally they are sorted by target dbId and merge joined with the (dbId -> node ID) index in a streaming
+ *         pass that creates the interactions.</li>
+ * </ol>
+ * Interactions whose targets are created only by a duplicate of an already planned interaction are not added,
+ * so no orphan ReferenceEntity instances are created.
+ * <p>
+ * Only the importer heap is bounded: every write still happens in the single import transaction, whose state on the
+ * server grows with the number of nodes and relationships created, and a retry of that transaction runs all the
+ * steps again.
+ */
+class ExternalMemoryImport {
+
+    private static final Logger importLogger = LoggerFactory.getLogger("import");
+
+    private static final String TMP_FOLDER = "./interaction-data.tmp";
+
+    //Identifiers are stored UTF-8 encoded and right padded with zeros
+    private static final int KEY = 128;
+
+    // [node ID][identifier]
+    private static final int SOURCE_RECORD = Long.BYTES + KEY;
+    // [identifier][dbId]
+    private static final int IDENTIFIER_RECORD = KEY + Long.BYTES;
+    // [dbId][node ID]
+    private static final int NODE_RECORD = 2 * Long.BYTES;
+    // [interaction id][source node ID][payload offset][target identifier]
+    private static final int PLANNED_RECORD = 3 * Long.BYTES + KEY;
+    private static final int PLANNED_KEY = 3 * Long.BYTES;
+    // [target dbId][interaction id][source node ID][payload offset]
+    private static final int RESOLVED_RECORD = 4 * Long.BYTES;
+
+    private final InteractionImporter importer;
+    private final Transaction tx;
+    private final Long graphImporterUserNode;
+    private final Long intActReferenceDatabaseNode;
+
+    //Per event detail is only logged at TRACE level, otherwise periodic summaries are logged
+    private final EventCounter interactionsAdded = new EventCounter(importLogger, "interactions added");
+    private final EventCounter referenceEntitiesAdded = new EventCounter(importLogger, "ReferenceEntity instances added");
+    private final EventCounter speciesAdded = new EventCounter(importLogger, "species relationships added");
+
+    private final File folder = new File(TMP_FOLDER);
+    //Species are resolved once per distinct taxId of the planned targets
+    private final Set<Integer> taxIds = new HashSet<>();
+    private long interactions = 0;
+    private long referenceEntities = 0;
+
+    ExternalMemoryImport(InteractionImporter importer, Transaction tx, Long graphImporterUserNode, Long intActReferenceDatabaseNode) {
+        this.importer = importer;
+        this.tx = tx;
+        this.graphImporterUserNode = graphImporterUserNode;
+        this.intActReferenceDatabaseNode = intActReferenceDatabaseNode;
+    }
+
+    long getInteractions() {
+        return interactions;
+    }
+
+    long getReferenceEntities() {
+        return referenceEntities;
+    }
+
+    void run() throws IOException {
+        FileUtils.deleteQuietly(folder);
+        if (!folder.mkdirs()) throw new IOException("The temporary folder " + folder.getPath() + " could not be created");
+        try {
+            File sources = file("sources");
+            long total = writeSources(sources);
+            File identifiers = file("identifiers");
+            File nodes = file("nodes");
+            writeReferenceEntities(identifiers, nodes);
+
+            File planned = file("planned");
+            try (Payloads payloads = new Payloads(file("payloads"))) {
+                planInteractions(sources, total, planned, payloads);
+
+                File distinct = file("distinct");
+                long n = ExternalSort.sort(planned, distinct, PLANNED_RECORD, ExternalMemoryImport::compareInteractionIds, (r1, r2) ->
+                        compareInteractionIds(r1, r2) == 0);
+                importLogger.info("{} distinct interactions planned", n);
+                FileUtils.deleteQuietly(planned);
+
+                File byTarget = file("by-target");
+                ExternalSort.sort(distinct, byTarget, PLANNED_RECORD, ExternalMemoryImport::compareTargetIdentifiers, null);
+                FileUtils.deleteQuietly(distinct);
+
+                File resolved = file("resolved");
+                resolveTargets(byTarget, identifiers, nodes, resolved, payloads);
+                FileUtils.deleteQuietly(byTarget);
+
+                File byTargetDbId = file("by-target-dbid");
+                ExternalSort.sort(resolved, byTargetDbId, RESOLVED_RECORD, Comparator.comparingLong(r -> getLong(r, 0)), null);
+                FileUtils.deleteQuietly(resolved);
+
+                createInteractions(byTargetDbId, nodes, payloads, n);
+            }
+            interactionsAdded.report();
+            referenceEntitiesAdded.report();
+            speciesAdded.report();
+        } finally {
+            FileUtils.deleteQuietly(folder);
+        }
+    }
+
+    private File file(String name) {
+        return new File(folder, name + ".bin");
+    }
+
+    /**
+     * Streams the ReferenceEntity instances referred by a PhysicalEntity taking part in an event (see isTarget)
+     */
+    private long writeSources(File sources) throws IOException {
+        System.out.print("\rRetrieving interaction data target ReferenceEntity instances...");
+        importLogger.info("Retrieving target ReferenceEntity instances");
+        String query = "MATCH (pe:DatabaseObject)-[:referenceEntity]->(re:DatabaseObject:ReferenceEntity)" +
+                "-[:referenceDatabase]->(rd:DatabaseObject:ReferenceDatabase) " +
+                "WHERE (re.variantIdentifier IS NOT NULL OR re.identifier IS NOT NULL) " +
+                "AND (pe)<-[:input|output|physicalEntity|diseaseEntity|regulator]-(:DatabaseObject) " +
+                "RETURN DISTINCT ID(re) AS node, rd.displayName + ':' + coalesce(re.variantIdentifier, re.identifier) AS identifier";
+        try (RecordWriter writer = new RecordWriter(sources, SOURCE_RECORD, false)) {
+            Result result = tx.run(query);
+            while (result.hasNext()) {
+                Record record = result.next();
+                byte[] key = toKey(record.get("identifier").asString());
+                if (key == null) continue;
+                writer.write(ByteBuffer.allocate(SOURCE_RECORD).putLong(record.get("node").asLong()).put(key).array());
+            }
+            System.out.print("\rRetrieving interaction data target ReferenceEntity instances >> Done");
+            importLogger.info("{} target ReferenceEntity instances retrieved", writer.getRecords());
+            return writer.getRecords();
+        }
+    }
+
+    /**
+     * Streams the (identifier -> dbId) and (dbId -> node ID) indexes of the ReferenceEntity instances and sorts them
+     */
+    private void writeReferenceEntities(File identifiers, File nodes) throws IOException {
+        String query = "MATCH (re:DatabaseObject:ReferenceEntity)-[:referenceDatabase]->(rd:DatabaseObject:ReferenceDatabase) " +
+                "WHERE re.variantIdentifier IS NOT NULL OR re.identifier IS NOT NULL " +
+                "RETURN re.dbId AS dbId, ID(re) AS node, rd.displayName + ':' + coalesce(re.variantIdentifier, re.identifier) AS identifier";
+        File unsortedIdentifiers = file("identifiers-unsorted");
+        File unsortedNodes = file("nodes-unsorted");
+        try (RecordWriter identifierWriter = new RecordWriter(unsortedIdentifiers, IDENTIFIER_RECORD, false);
+             RecordWriter nodeWriter = new RecordWriter(unsortedNodes, NODE_RECORD, false)) {
+            Result result = tx.run(query);
+            while (result.hasNext()) {
+                Record record = result.next();
+                long dbId = record.get("dbId").asLong();
+                nodeWriter.write(ByteBuffer.allocate(NODE_RECORD).putLong(dbId).putLong(record.get("node").asLong()).array());
+                byte[] key = toKey(record.get("identifier").asString());
+                if (key != null) identifierWriter.write(ByteBuffer.allocate(IDENTIFIER_RECORD).put(key).putLong(dbId).array());
+            }
+        }
+        //Sorting by dbId within the identifier keeps the target choice deterministic
+        ExternalSort.sort(unsortedIdentifiers, identifiers, IDENTIFIER_RECORD,
+                ((Comparator<byte[]>) (r1, r2) -> compareKeys(r1, 0, r2, 0)).thenComparingLong(r -> getLong(r, KEY)), null);
+        ExternalSort.sort(unsortedNodes, nodes, NODE_RECORD, Comparator.comparingLong(r -> getLong(r, 0)), null);
+        FileUtils.deleteQuietly(unsortedIdentifiers);
+        FileUtils.deleteQuietly(unsortedNodes);
+    }
+
+    private void planInteractions(File sources, long total, File planned, Payloads payloads) throws IOException {
+        importLogger.info("Planning interactions on disk");
+        int i = 0;
+        try (RecordReader reader = new RecordReader(sources, SOURCE_RECORD);
+             RecordWriter writer = new RecordWriter(planned, PLANNED_RECORD, false)) {
+            byte[] source;
+            while ((source = reader.next()) != null) {
+                ProgressBarUtils.updateProgressBar(++i, (int) total);
+                if (i % QUERIES_OFFSET == 0) importer.cleanInteractorsCache();
+                long sourceNode = getLong(source, 0);
+                String sourceName = fromKey(source, Long.BYTES);
+                for (Interaction intactInteraction : importer.getIntActInteraction(sourceName)) {
+                    final String targetIdentifier = intactInteraction.getInteractorB().getAcc().trim().split(" ")[0];
+                    byte[] targetKey = toKey(targetIdentifier);
+                    if (targetKey == null) continue;
+
+                    String interactionName = sourceName + " <-> " + targetIdentifier + " (IntAct)";
+                    Interactor ib = intactInteraction.getInteractorB();
+                    //The ReferenceEntity is only built in resolveTargets, when the target turns out to be new
+                    HashMap<String, Object> payload = new HashMap<>();
+                    payload.put("interaction", importer.createInteractionMap(null, interactionName, intactInteraction));
+                    payload.put("target", new TargetInteractor(ib));
+                    taxIds.add(ib.getTaxid());
+                    long offset = payloads.write(payload);
+
+                    writer.write(ByteBuffer.allocate(PLANNED_RECORD)
+                            .putLong(intactInteraction.getId())
+                            .putLong(sourceNode)
+                            .putLong(offset)
+                            .put(targetKey)
+                            .array());
+                }
+            }
+            importLogger.info("{} interactions planned for {} target ReferenceEntity instances", writer.getRecords(), total);
+        }
+    }
+
+    /**
+     * Merge joins the planned interactions (sorted by target identifier) with the (identifier -> dbId) index,
+     * creating the ReferenceEntity instances for the targets that are not in the graph yet. These are created in
+     * batches, so their dbIds are allocated when they are found and their nodes are indexed once the batch is written.
+     */
+    private void resolveTargets(File byTarget, File identifiers, File nodes, File resolved, Payloads payloads) throws IOException {
+        importLogger.info("Resolving interaction targets");
+        Map<Integer, Long> speciesByTaxId = resolveSpecies();
+        try (RecordReader plannedReader = new RecordReader(byTarget, PLANNED_RECORD);
+             RecordReader identifierReader = new RecordReader(identifiers, IDENTIFIER_RECORD);
+             RecordWriter newNodes = new RecordWriter(nodes, NODE_RECORD, true);
+             RecordWriter writer = new RecordWriter(resolved, RESOLVED_RECORD, false)) {
+            List<NewTarget> newTargets = new ArrayList<>();
+            byte[] identifier = identifierReader.next();
+            byte[] lastNew = null;
+            long lastNewDbId = 0;
+            byte[] planned;
+            while ((planned = plannedReader.next()) != null) {
+                int keyOffset = PLANNED_KEY;
+                while (identifier != null && compareKeys(identifier, 0, planned, keyOffset) < 0) identifier = identifierReader.next();
+
+                long targetDbId;
+                if (identifier != null && compareKeys(identifier, 0, planned, keyOffset) == 0) {
+                    targetDbId = getLong(identifier, KEY);
+                } else if (lastNew != null && compareKeys(lastNew, keyOffset, planned, keyOffset) == 0) {
+                    targetDbId = lastNewDbId;
+                } else {
+                    TargetInteractor target = (TargetInteractor) payloads.read(getLong(planned, 2 * Long.BYTES)).get("target");
+                    targetDbId = ++maxDbId;
+                    Map<String, Object> toReferenceEntity = importer.createReferenceEntityMap(targetDbId, target);
+                    Long speciesDbId = speciesByTaxId.get(target.getTaxId());
+                    newTargets.add(importer.toNewTarget(fromKey(planned, keyOffset), toReferenceEntity, speciesDbId));
+                    if (newTargets.size() >= importer.batchSize.getSize()) createReferenceEntities(newTargets, newNodes);
+                    lastNew = planned;
+                    lastNewDbId = targetDbId;
+                }
+
+                writer.write(ByteBuffer.allocate(RESOLVED_RECORD)
+                        .putLong(targetDbId)
+                        .putLong(getLong(planned, 0))
+                        .putLong(getLong(planned, Long.BYTES))
+                        .putLong(getLong(planned, 2 * Long.BYTES))
+                        .array());
+            }
+            createReferenceEntities(newTargets, newNodes);
+        }
+        importLogger.info("{} ReferenceEntity instances created for new interaction targets", referenceEntities);
+    }
+
+    private Map<Integer, Long> resolveSpecies() throws IOException {
+        try {
+            return importer.resolveSpecies(taxIds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The species lookup has been interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("An error occurred while looking up the species of the interaction targets", e.getCause());
+        }
+    }
+
+    /**
+     * New dbIds are always greater than the existing ones and are allocated in order, so appending the created
+     * nodes keeps the (dbId -> node ID) index sorted
+     */
+    private void createReferenceEntities(List<NewTarget> newTargets, RecordWriter newNodes) throws IOException {
+        if (newTargets.isEmpty()) return;
+        Map<Long, Long> created = importer.createReferenceEntities(tx, newTargets, graphImporterUserNode, referenceEntitiesAdded, speciesAdded);
+        for (NewTarget target : newTargets) {
+            newNodes.write(ByteBuffer.allocate(NODE_RECORD).putLong(target.getDbId()).putLong(created.get(target.getDbId())).array());
+        }
+        referenceEntities += created.size();
+        newTargets.clear();
+    }
+
+    /**
+     * Merge joins the resolved interactions (sorted by target dbId) with the (dbId -> node ID) index and creates them
+     */
+    private void createInteractions(File byTargetDbId, File nodes, Payloads payloads, long total) throws IOException {
+        importLogger.info("Creating interactions");
+        try (RecordReader resolvedReader = new RecordReader(byTargetDbId, RESOLVED_RECORD);
+             RecordReader nodeReader = new RecordReader(nodes, NODE_RECORD)) {
+            byte[] node = nodeReader.next();
+            byte[] resolved;
+            int i = 0;
+            while ((resolved = resolvedReader.next()) != null) {
+                ProgressBarUtils.updateProgressBar(++i, (int) total);
+                long targetDbId = getLong(resolved, 0);
+                while (node != null && getLong(node, 0) < targetDbId) node = nodeReader.next();
+                if (node == null || getLong(node, 0) != targetDbId) {
+                    importLogger.warn("No node found for the interaction target {}", targetDbId);
+                    continue;
+                }
+                long a = getLong(resolved, 2 * Long.BYTES);
+                long b = getLong(node, Long.BYTES);
+
+                @SuppressWarnings("unchecked")
+                Map<String, Object> interaction = (Map<String, Object>) payloads.read(getLong(resolved, 3 * Long.BYTES)).get("interaction");
+                Long dbId = ++maxDbId;
+                interaction.put(DBID, dbId);
+                createInteraction(tx, interaction, a, b, intActReferenceDatabaseNode, graphImporterUserNode);
+                interactions++;
+                importLogger.trace("Interaction {} added: {}", dbId, interaction.get(NAME));
+                interactionsAdded.increment();
+            }
+        }
+    }
+
+    private static byte[] toKey(String identifier) {
+        byte[] bytes = identifier.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > KEY) {
+            importLogger.warn("Identifier '{}' is longer than {} bytes and has been skipped", identifier, KEY);
+            return null;
+        }
+        return Arrays.copyOf(bytes, KEY);
+    }
+
+    private static String fromKey(byte[] record, int offset) {
+        int end = offset;
+        while (end < offset + KEY && record[end] != 0) end++;
+        return new String(record, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static int compareKeys(byte[] r1, int offset1, byte[] r2, int offset2) {
+        return Arrays.compareUnsigned(r1, offset1, offset1 + KEY, r2, offset2, offset2 + KEY);
+    }
+
+    private static int compareInteractionIds(byte[] r1, byte[] r2) {
+        return Long.compare(getLong(r1, 0), getLong(r2, 0));
+    }
+
+    private static int compareTargetIdentifiers(byte[] r1, byte[] r2) {
+        return compareKeys(r1, PLANNED_KEY, r2, PLANNED_KEY);
+    }
+
+    private static long getLong(byte[] record, int offset) {
+        return ByteBuffer.wrap(record).getLong(offset);
+    }
+
+    /**
+     * Variable length payloads of the planned interactions, referenced by their offset in the file. The property maps
+     * are stored with Java serialization, so the property types (e.g. floating point scores) are kept as they are.
+     */
+    private static class Payloads implements Closeable {
+
+        private final DataOutputStream out;
+        private final RandomAccessFile in;
+        private long offset = 0;
+
+        Payloads(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            this.in = new RandomAccessFile(file, "r");
+        }
+
+        long write(HashMap<String, Object> payload) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+                oos.writeObject(payload);
+            }
+            byte[] bytes = buffer.toByteArray();
+            long rtn = offset;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            offset += Integer.BYTES + bytes.length;
+            return rtn;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> read(long offset) throws IOException {
+            out.flush();
+            in.seek(offset);
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return (Map<String, Object>) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Corrupted payload at offset " + offset, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            in.close();
+        }
+    }
+}
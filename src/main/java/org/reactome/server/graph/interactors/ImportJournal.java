@@ -0,0 +1,185 @@
+package org.reactome.server.graph.interactors;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the logical operations performed by the {@link InteractionImporter} so they can be applied
+ * to other graphs sharing the same baseline (see {@link JournalReplayer}) without running the whole
+ * import again.
+ * <p>
+ * The journal is a JSON Lines file (gzipped when the file name ends with .gz) with one operation per line:
+ * a header with the baseline max dbId, the created nodes (labels and properties, including the allocated dbId),
+ * the created relationships (endpoints referenced by dbId) and a closing record with the totals and the max
+ * dbId allocated by the import.
+ * <p>
+ * JSON does not tell floating point numbers from integers (e.g. a score of 1.0 is written as 1), so the names
+ * of the floating point properties of every operation are recorded next to them to restore their type on replay.
+ * <p>
+ * It is written to a temporary file that only takes the final name once {@link #complete()} is called,
+ * so a journal of a failed import never looks like a valid one.
+ */
+public class ImportJournal {
+
+    private static final Logger importLogger = LoggerFactory.getLogger("import");
+
+    static final int VERSION = 2;
+
+    static final String OP = "op";
+    static final String OP_HEADER = "header";
+    static final String OP_NODE = "node";
+    static final String OP_RELATIONSHIP = "relationship";
+    static final String OP_END = "end";
+
+    static final String VERSION_KEY = "version";
+    static final String MAX_DB_ID = "maxDbId";
+    static final String LABELS = "labels";
+    static final String PROPERTIES = "props";
+    static final String DOUBLES = "doubles";
+    static final String TYPE = "type";
+    static final String FROM = "from";
+    static final String TO = "to";
+    static final String NODES = "nodes";
+    static final String RELATIONSHIPS = "relationships";
+
+    private final File file;
+    private final File tmpFile;
+    private Writer writer;
+
+    private Map<Long, Long> nodeDbIds; // Neo4j node ID -> dbId
+    private long nodes = 0;
+    private long relationships = 0;
+    private long lastDbId;
+
+    public ImportJournal(String fileName) {
+        this.file = new File(fileName);
+        this.tmpFile = new File(fileName + ".tmp");
+    }
+
+    /**
+     * Writes the journal header. The relationships are stored by dbId, so the endpoints of the relationships
+     * created against existing nodes are translated with the given map. Only the existing nodes the import
+     * links to are needed, not the whole graph.
+     * <p>
+     * The transaction function might be retried by the driver, so any previously recorded content is dropped.
+     *
+     * @param maxDbId   the max dbId of the graph before the import starts (the baseline)
+     * @param endpoints the (node ID -> dbId) map of the existing nodes the import creates relationships to,
+     *                  kept (and extended with the created nodes) by the journal
+     */
+    void start(Long maxDbId, Map<Long, Long> endpoints) {
+        try {
+            if (writer != null) writer.close();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16);
+            if (file.getName().endsWith(".gz")) out = new GZIPOutputStream(out, 1 << 16);
+            writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The import journal " + tmpFile.getPath() + " could not be created", e);
+        }
+        nodes = 0;
+        relationships = 0;
+        lastDbId = maxDbId;
+        nodeDbIds = endpoints;
+        JSONObject header = new JSONObject();
+        header.put(OP, OP_HEADER);
+        header.put(VERSION_KEY, VERSION);
+        header.put(MAX_DB_ID, maxDbId);
+        write(header);
+        importLogger.info("Recording import journal to {}", file.getPath());
+    }
+
+    void recordNode(long node, Map<String, Object> props, String[] labels) {
+        Long dbId = (Long) props.get(InteractionImporter.DBID);
+        nodeDbIds.put(node, dbId);
+        lastDbId = Math.max(lastDbId, dbId);
+        JSONObject op = new JSONObject();
+        op.put(OP, OP_NODE);
+        op.put(LABELS, new JSONArray(Arrays.asList(labels)));
+        putProperties(op, props);
+        write(op);
+        nodes++;
+    }
+
+    void recordRelationship(long n1, long n2, String type, Map<String, Object> props) {
+        Long from = nodeDbIds.get(n1);
+        Long to = nodeDbIds.get(n2);
+        if (from == null || to == null) {
+            throw new IllegalStateException("Relationship " + type + " between nodes " + n1 + " and " + n2 + " cannot be journaled by dbId");
+        }
+        JSONObject op = new JSONObject();
+        op.put(OP, OP_RELATIONSHIP);
+        op.put(TYPE, type);
+        op.put(FROM, from);
+        op.put(TO, to);
+        putProperties(op, props);
+        write(op);
+        relationships++;
+    }
+
+    /**
+     * Closes the journal and moves it to its final location. To be called once the import has been committed.
+     */
+    public void complete() throws IOException {
+        if (writer == null) throw new IllegalStateException("The import journal has not been started");
+        JSONObject end = new JSONObject();
+        end.put(OP, OP_END);
+        end.put(NODES, nodes);
+        end.put(RELATIONSHIPS, relationships);
+        end.put(MAX_DB_ID, lastDbId);
+        write(end);
+        writer.close();
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        importLogger.info("Import journal {} completed with {} nodes and {} relationships", file.getPath(), nodes, relationships);
+        System.out.printf("\tImport journal written to %s (%,d nodes, %,d relationships)%n", file.getPath(), nodes, relationships);
+    }
+
+    /**
+     * Drops the partially written journal. To be called when the import did not succeed.
+     */
+    public void discard() {
+        try {
+            if (writer != null) writer.close();
+        } catch (IOException e) {
+            importLogger.error(e.getMessage(), e);
+        }
+        FileUtils.deleteQuietly(tmpFile);
+        importLogger.warn("Import journal {} discarded", file.getPath());
+    }
+
+    private static void putProperties(JSONObject op, Map<String, Object> props) {
+        op.put(PROPERTIES, new JSONObject(props));
+        JSONArray doubles = new JSONArray();
+        props.forEach((key, value) -> {
+            if (isDouble(value)) doubles.put(key);
+        });
+        if (doubles.length() > 0) op.put(DOUBLES, doubles);
+    }
+
+    private static boolean isDouble(Object value) {
+        if (value instanceof Double || value instanceof Float) return true;
+        if (value instanceof double[] || value instanceof float[] || value instanceof Double[] || value instanceof Float[]) return true;
+        if (value instanceof Collection) return ((Collection<?>) value).stream().anyMatch(ImportJournal::isDouble);
+        return false;
+    }
+
+    private void write(JSONObject op) {
+        try {
+            writer.write(op.toString());
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException("An error occurred while writing the import journal", e);
+        }
+    }
+}
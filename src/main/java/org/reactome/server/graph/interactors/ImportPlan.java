@@ -0,0 +1,223 @@
+package org.reactome.server.graph.interactors;
+
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.exceptions.Neo4jException;
+import org.reactome.server.graph.domain.model.InstanceEdit;
+import org.reactome.server.graph.domain.model.ReferenceGeneProduct;
+import org.reactome.server.graph.domain.model.ReferenceIsoform;
+import org.reactome.server.graph.domain.model.ReferenceMolecule;
+import org.reactome.server.graph.domain.model.UndirectedInteraction;
+import org.reactome.server.interactors.model.Interactor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.neo4j.driver.Values.parameters;
+import static org.reactome.server.graph.utils.FormatUtils.getTimeFormatted;
+
+/**
+ * The change set an import would write to the graph, as computed by {@link InteractionImporter#plan(Transaction)},
+ * together with the measured lookup and write rates used to project the import runtime.
+ * <p>
+ * Lookups are run in parallel, so the collections filled while planning are thread safe.
+ */
+public class ImportPlan {
+
+    private static final Logger importLogger = LoggerFactory.getLogger("import");
+
+    private static final int PROBE_WRITES = 500;
+    private static final int PROBE_BATCH_WRITES = 5_000;
+
+    private final Set<Long> interactions = ConcurrentHashMap.newKeySet();
+    private final Map<String, Interactor> newTargets = new ConcurrentHashMap<>();  // identifier -> interactor B
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAdder lookedUpInteractions = new LongAdder();
+
+    private int sources = 0;
+    private int maxSourceInteractions = 0;
+    private String maxSource;
+
+    private final Map<Class<?>, Integer> referenceEntities = new HashMap<>();
+    private int speciesRelationships = 0;
+
+    private long discoveryMillis;
+    private long taxonomyMillis;
+    private long elapsedMillis;
+    private double writesPerSecond = Double.NaN;
+    private double batchedWritesPerSecond = Double.NaN;
+
+    void setSources(int sources) {
+        this.sources = sources;
+    }
+
+    void addLookup(String source, int sourceInteractions, long nanos) {
+        lookups.increment();
+        lookupNanos.add(nanos);
+        lookedUpInteractions.add(sourceInteractions);
+        synchronized (this) {
+            if (sourceInteractions > maxSourceInteractions) {
+                maxSourceInteractions = sourceInteractions;
+                maxSource = source;
+            }
+        }
+    }
+
+    void addInteraction(Long id) {
+        interactions.add(id);
+    }
+
+    void addNewTarget(String identifier, Interactor interactor) {
+        newTargets.putIfAbsent(identifier, interactor);
+    }
+
+    Map<String, Interactor> getNewTargets() {
+        return Collections.unmodifiableMap(newTargets);
+    }
+
+    void addReferenceEntity(Class<?> schemaClass, boolean hasSpecies) {
+        referenceEntities.merge(schemaClass, 1, Integer::sum);
+        if (hasSpecies) speciesRelationships++;
+    }
+
+    void setDiscoveryMillis(long discoveryMillis) {
+        this.discoveryMillis = discoveryMillis;
+    }
+
+    void setTaxonomyMillis(long taxonomyMillis) {
+        this.taxonomyMillis = taxonomyMillis;
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    private int getInteractions() {
+        return interactions.size();
+    }
+
+    private int getReferenceEntities() {
+        return newTargets.size();
+    }
+
+    /**
+     * Every created UndirectedInteraction and ReferenceEntity gets an InstanceEdit, as well as the
+     * IntAct ReferenceDatabase. The latter and the importer Person are the two tracking nodes.
+     */
+    private long getInstanceEdits() {
+        return getInteractions() + getReferenceEntities() + 1L;
+    }
+
+    long getNodes() {
+        return getInteractions() + getReferenceEntities() + getInstanceEdits() + 2L;
+    }
+
+    long getRelationships() {
+        long interactor = 2L * getInteractions();
+        long referenceDatabase = getInteractions() + getReferenceEntities();
+        return interactor + referenceDatabase + speciesRelationships + 2 * getInstanceEdits();  // created and author
+    }
+
+    /**
+     * The new targets, their InstanceEdits and their referenceDatabase, species, created and author
+     * relationships are written in batches before the interactions
+     */
+    private long getBatchedWrites() {
+        return 2L * getReferenceEntities() + 3L * getReferenceEntities() + speciesRelationships;
+    }
+
+    /**
+     * Measures the graph write rates, one query at a time as the interactions are written and in one batch as the
+     * new targets are, in a write transaction that is rolled back so nothing is persisted. When the graph cannot be
+     * written (e.g. read only account or read replica) the rates are not measured and the plan is reported anyway.
+     */
+    void probeWriteRate(Session session) {
+        try {
+            probe(session);
+        } catch (Neo4jException e) {
+            importLogger.warn("The write rate could not be measured: {}", e.getMessage());
+            writesPerSecond = Double.NaN;
+            batchedWritesPerSecond = Double.NaN;
+        }
+    }
+
+    private void probe(Session session) {
+        long start = System.nanoTime();
+        long batchedNanos;
+        try (Transaction tx = session.beginTransaction()) {
+            Long previous = null;
+            for (int i = 1; i <= PROBE_WRITES; i++) {
+                Map<String, Object> props = new HashMap<>();
+                props.put(InteractionImporter.DBID, (long) -i);
+                props.put(InteractionImporter.NAME, "Import plan probe " + i);
+                Long node = tx.run("CREATE (n:DatabaseObject:ImportPlanProbe) SET n = $props RETURN ID(n)", parameters("props", props))
+                        .single().get("ID(n)").asLong();
+                if (previous != null) {
+                    tx.run("MATCH (n1:DatabaseObject) WHERE ID(n1) = $n1 " +
+                           "MATCH (n2:DatabaseObject) WHERE ID(n2) = $n2 " +
+                           "CREATE (n1)-[r:probe]->(n2)", parameters("n1", previous, "n2", node)).consume();
+                }
+                previous = node;
+            }
+            long writes = 2L * PROBE_WRITES - 1;
+            writesPerSecond = writes * 1e9 / Math.max(1, System.nanoTime() - start);
+
+            long batchStart = System.nanoTime();
+            tx.run("UNWIND range(1, $n) AS i CREATE (n:DatabaseObject:ImportPlanProbe) SET n.dbId = -($offset + i)",
+                    parameters("n", PROBE_BATCH_WRITES, "offset", PROBE_WRITES)).consume();
+            batchedNanos = System.nanoTime() - batchStart;
+            tx.rollback();
+        }
+        batchedWritesPerSecond = PROBE_BATCH_WRITES * 1e9 / Math.max(1, batchedNanos);
+    }
+
+    /**
+     * The import looks the sources up twice: in parallel to collect the new targets and then serially to write
+     * the interactions, so the projected lookup time is the sum of the measured ones plus its parallel share
+     */
+    private long getProjectedMillis() {
+        long lookupMillis = lookupNanos.sum() / 1_000_000;
+        long parallelLookupMillis = lookupMillis / Runtime.getRuntime().availableProcessors();
+        long writeMillis = 0;
+        if (!Double.isNaN(writesPerSecond)) {
+            long batchedWrites = getBatchedWrites();
+            writeMillis = (long) ((getNodes() + getRelationships() - batchedWrites) * 1000 / writesPerSecond);
+            writeMillis += (long) (batchedWrites * 1000 / batchedWritesPerSecond);
+        }
+        return discoveryMillis + parallelLookupMillis + lookupMillis + taxonomyMillis + writeMillis;
+    }
+
+    public void print() {
+        long lookupMillis = lookupNanos.sum() / 1_000_000;
+        System.out.printf("%n%nImport plan (nothing has been written to the graph, computed in %s)%n", getTimeFormatted(elapsedMillis));
+        System.out.printf("\tTarget ReferenceEntity instances:  %,d%n", sources);
+        System.out.printf("\tInteractions per target:           %,.1f on average, %,d max (%s)%n",
+                sources == 0 ? 0d : (double) lookedUpInteractions.sum() / sources, maxSourceInteractions, maxSource);
+        System.out.printf("\tNodes to create:%n");
+        System.out.printf("\t\t%-24s %,d%n", UndirectedInteraction.class.getSimpleName(), getInteractions());
+        for (Class<?> clazz : new Class<?>[]{ReferenceGeneProduct.class, ReferenceIsoform.class, ReferenceMolecule.class}) {
+            System.out.printf("\t\t%-24s %,d%n", clazz.getSimpleName(), referenceEntities.getOrDefault(clazz, 0));
+        }
+        System.out.printf("\t\t%-24s %,d%n", InstanceEdit.class.getSimpleName(), getInstanceEdits());
+        System.out.printf("\tRelationships to create:%n");
+        System.out.printf("\t\t%-24s %,d%n", "interactor", 2L * getInteractions());
+        System.out.printf("\t\t%-24s %,d%n", "referenceDatabase", (long) getInteractions() + getReferenceEntities());
+        System.out.printf("\t\t%-24s %,d%n", "species", speciesRelationships);
+        System.out.printf("\t\t%-24s %,d%n", "created / author", 2 * getInstanceEdits());
+        System.out.printf("\tWrite volume:                      %,d nodes and %,d relationships (%,d of them written in batches)%n",
+                getNodes(), getRelationships(), getBatchedWrites());
+        System.out.printf("\tMeasured:                          discovery %s, %,d lookups in %s serial time, taxonomy %s, %s%n",
+                getTimeFormatted(discoveryMillis), lookups.sum(), getTimeFormatted(lookupMillis), getTimeFormatted(taxonomyMillis),
+                Double.isNaN(writesPerSecond) ? "write rate not measured"
+                        : String.format("%,.0f writes/s (%,.0f writes/s in batches)", writesPerSecond, batchedWritesPerSecond));
+        System.out.printf("\tProjected import runtime:          %s%s%n", getTimeFormatted(getProjectedMillis()),
+                Double.isNaN(writesPerSecond) ? " (writes not included)" : "");
+    }
+}
@@ -12,6 +12,9 @@ import org.reactome.server.graph.domain.model.ReferenceGeneProduct;
 import org.reactome.server.graph.domain.model.ReferenceIsoform;
 import org.reactome.server.graph.domain.model.ReferenceMolecule;
 import org.reactome.server.graph.domain.model.UndirectedInteraction;
+import org.reactome.server.graph.utils.AdaptiveBatchSize;
+import org.reactome.server.graph.utils.CompressedFiles;
+import org.reactome.server.graph.utils.EventCounter;
 import org.reactome.server.graph.utils.ProgressBarUtils;
 import org.reactome.server.graph.utils.TaxonomyHelper;
 import org.reactome.server.interactors.IntactParser;
@@ -27,8 +30,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static org.neo4j.driver.Values.parameters;
 import static org.reactome.server.graph.utils.FormatUtils.getTimeFormatted;
@@ -49,10 +55,21 @@ public class InteractionImporter {
     public static final String STOICHIOMETRY = "stoichiometry";
     public static final String ORDER = "order";
 
+    private static final RelationshipType interactor = RelationshipType.withName(ReactomeJavaConstants.interactor);
+    private static final RelationshipType referenceDatabase = RelationshipType.withName(ReactomeJavaConstants.referenceDatabase);
+    private static final RelationshipType species = RelationshipType.withName(ReactomeJavaConstants.species);
+
+    private static final Map<String, Object> stdRelationshipProp;
+    static {
+        stdRelationshipProp = new HashMap<>();
+        stdRelationshipProp.put(STOICHIOMETRY, 1);
+        stdRelationshipProp.put(ORDER, 1);
+    }
+
     public static Long maxDbId;
-    private final Map<Long, Long> dbIds;
+    final Map<Long, Long> dbIds;
 
-    private final TaxonomyHelper taxonomyHelper;
+    final TaxonomyHelper taxonomyHelper;
 
     private static final Long REACTOME_UNIPROT_REFERENCE_DATABASE = 2L;
     private static final Long REACTOME_CHEBI_REFERENCE_DATABASE = 114984L;
@@ -61,132 +78,514 @@ public class InteractionImporter {
     private static Boolean isSQLLite;
     private static String userInteractionDataFile;
     private static final String INTERACTION_DATA_TMP_FILE = "./interaction-data.tmp.db";
-    private static final Integer QUERIES_OFFSET = 1000;
+    private static final String DECOMPRESSED_DATA_TMP_FILE = "./interaction-data.tmp.input";
+    static final Integer QUERIES_OFFSET = 1000;
+    //Ensembl REST rate limits its clients (15 requests per second), so only a few taxonomy lookups run at a time
+    private static final int TAXONOMY_THREADS = 3;
     private InteractorsDatabase interactorsDatabase;
     private InteractionService interactionService;
     private InteractorResourceService interactorResourceService;
 
     private Long intActReferenceDatabaseDbId;
     private static final Map<String, Set<Long>> referenceEntityMap = new HashMap<>(); // (UniProt:12345) -> [dbId]
-    private static final Map<Long, InteractorResource> interactorResourceMap = new HashMap<>();
-    private static final Map<Class<?>, String[]> labelMap = new HashMap<>();
+    //Both are also read by the threads preparing the new targets
+    private static final Map<Long, InteractorResource> interactorResourceMap = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, String[]> labelMap = new ConcurrentHashMap<>();
+
+    private static ImportJournal journal;
+    private final boolean externalMemory;
+    final AdaptiveBatchSize batchSize;
 
     public InteractionImporter(Transaction tx, String fileName, Boolean isSQLLite) {
+        this(tx, fileName, isSQLLite, null, false, new AdaptiveBatchSize(AdaptiveBatchSize.DEFAULT_MIN, AdaptiveBatchSize.DEFAULT_MAX));
+    }
+
+    /**
+     * @param journal        when provided, every node and relationship created by the import is recorded on it
+     * @param externalMemory when true, the interactions are planned on disk (see {@link ExternalMemoryImport})
+     *                       and only the ReferenceDatabase and Taxon nodes are kept in the dbIds map
+     * @param batchSize      size of the batches in which the new interaction targets are created
+     */
+    public InteractionImporter(Transaction tx, String fileName, Boolean isSQLLite, ImportJournal journal, boolean externalMemory,
+                               AdaptiveBatchSize batchSize) {
         Result maxDbIdResult = tx.run("MATCH (n:DatabaseObject) RETURN max(n.dbId) AS maxDbId");
         Record maxDbIdRecord = maxDbIdResult.single();
         maxDbId = maxDbIdRecord.get("maxDbId").asLong();
-        this.dbIds = fetchDbIds(tx);
+        this.externalMemory = externalMemory;
+        this.batchSize = batchSize;
+        this.dbIds = externalMemory ? fetchReferenceDbIds(tx) : fetchDbIds(tx);
         this.taxonomyHelper = new TaxonomyHelper(fetchTaxIds(tx));
         useUserInteractionData = fileName != null && !fileName.isEmpty();
         userInteractionDataFile = fileName;
         this.isSQLLite = isSQLLite;
+        InteractionImporter.journal = journal;
+        if (journal != null) journal.start(maxDbId, fetchJournalEndpoints(tx));
     }
 
     public void addInteractionData(Transaction tx) {
         long start = System.currentTimeMillis();
         initialise();
 
-        RelationshipType interactor = RelationshipType.withName(ReactomeJavaConstants.interactor);
-        RelationshipType referenceDatabase = RelationshipType.withName(ReactomeJavaConstants.referenceDatabase);
-        RelationshipType species = RelationshipType.withName(ReactomeJavaConstants.species);
-
-        Map<String, Object> stdRelationshipProp = new HashMap<>();
-        stdRelationshipProp.put(STOICHIOMETRY, 1);
-        stdRelationshipProp.put(ORDER, 1);
-
         Long graphImporterUserNode = TrackingObjects.createGraphImporterUserNode(tx);
         intActReferenceDatabaseDbId = TrackingObjects.createIntActReferenceDatabase(dbIds, graphImporterUserNode, tx);
         Long intActReferenceDatabaseNode = dbIds.get(intActReferenceDatabaseDbId);
 
+        if (externalMemory) {
+            ExternalMemoryImport externalMemoryImport = new ExternalMemoryImport(this, tx, graphImporterUserNode, intActReferenceDatabaseNode);
+            try {
+                externalMemoryImport.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException("An error occurred while planning the interactions on disk", e);
+            } finally {
+                finalise();
+            }
+            printSummary(externalMemoryImport.getInteractions(), externalMemoryImport.getReferenceEntities(), start);
+            printBatchSizeReport();
+            return;
+        }
+
+        //Per event detail is only logged at TRACE level, otherwise periodic summaries are logged
+        EventCounter interactionsAdded = new EventCounter(importLogger, "interactions added");
+
+        List<Source> sources = getSources(tx);
+
+        //All the targets not present in the graph are created beforehand, so interactions only point to existing nodes
+        int addedReferenceEntities;
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Map<String, Interactor> newTargets = collectNewTargets(executor, sources);
+            List<NewTarget> targets = prepareNewTargets(executor, newTargets);
+            addedReferenceEntities = createNewTargets(tx, targets, graphImporterUserNode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The creation of the interaction targets has been interrupted", e);
+        } catch (ExecutionException | SQLException e) {
+            throw new IllegalStateException("An error occurred while creating the interaction targets", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.print("\rAdding interactions...");
+        importLogger.info("Adding interactions");
         Set<Long> addedInteractions = new HashSet<>();
-        int addedReferenceEntities = 0;
-        Collection<Node> referenceEntities = getTargetReferenceEntities(tx);
-        int i = 0; int total = referenceEntities.size();
-        for (Node referenceEntity : referenceEntities) {
+        int i = 0; int total = sources.size();
+        for (Source source : sources) {
             ProgressBarUtils.updateProgressBar(++i, total);
             if(i % QUERIES_OFFSET == 0) cleanInteractorsCache();
+            final Long a = source.node;
+
+            for (Interaction intactInteraction : getIntActInteraction(source.name)) {
+
+                final String targetIdentifier = intactInteraction.getInteractorB().getAcc().trim().split(" ")[0];
+
+                final Set<Long> targetEntities = referenceEntityMap.get(targetIdentifier);
+                if (targetEntities == null) continue;
+
+                final List<Long> targetNodes = new ArrayList<>();
+                targetEntities.forEach(t -> {
+                    if (dbIds.containsKey(t)) targetNodes.add(dbIds.get(t));
+                });
+
+                String interactionName =  source.name + " <-> " + targetIdentifier + " (IntAct)";
+                for (Long b : targetNodes) {
+                    //Check whether the interaction has been added before
+                    if (addedInteractions.contains(intactInteraction.getId())) continue;
+                    addedInteractions.add(intactInteraction.getId());
+
+                    Long dbId = ++maxDbId;
+                    Map<String, Object> interaction = createInteractionMap(dbId, interactionName, intactInteraction);
+                    dbIds.put(dbId, createInteraction(tx, interaction, a, b, intActReferenceDatabaseNode, graphImporterUserNode));
+                    importLogger.trace("Interaction {} added: {}", dbId, interactionName);
+                    interactionsAdded.increment();
+                }
+            }
+        }
+
+        finalise();
+        interactionsAdded.report();
+        printSummary(addedInteractions.size(), addedReferenceEntities, start);
+        printBatchSizeReport();
+    }
+
+    private void printBatchSizeReport() {
+        importLogger.info("Target ReferenceEntity instances {}", batchSize.getReport());
+        System.out.printf("\tTarget ReferenceEntity instances %s%n", batchSize.getReport());
+    }
+
+    /**
+     * @return the target ReferenceEntity instances with their identifiers as used to query the interaction data
+     */
+    private List<Source> getSources(Transaction tx) {
+        List<Source> rtn = new ArrayList<>();
+        for (Node referenceEntity : getTargetReferenceEntities(tx)) {
             final Long a = dbIds.get(referenceEntity.get(DBID).asLong());
             if (a == null) continue;
 
             String sourceIdentifier = null;
             if (!referenceEntity.get(VARIANT_IDENTIFIER).isNull()) sourceIdentifier = referenceEntity.get(VARIANT_IDENTIFIER).asString();
             else if (!referenceEntity.get(IDENTIFIER).isNull()) sourceIdentifier = referenceEntity.get(IDENTIFIER).asString();
-            if (sourceIdentifier != null) {
-                String resource = getReferenceDatabaseName(tx, referenceEntity);
-                for (Interaction intactInteraction : getIntActInteraction(resource, sourceIdentifier)) {
-
-                    final String targetIdentifier = intactInteraction.getInteractorB().getAcc().trim().split(" ")[0];
-
-                    final Set<Long> targetEntities = referenceEntityMap.get(targetIdentifier);
-
-                    final List<Long> targetNodes = new ArrayList<>();
-                    if (targetEntities != null && !targetEntities.isEmpty())  {
-                        targetEntities.forEach(t -> {
-                            if (dbIds.containsKey(t)) targetNodes.add(dbIds.get(t));
-                        });
-                    } else {
-                        Interactor ib = intactInteraction.getInteractorB();
-                        Map<String, Object> toReferenceEntity = createReferenceEntityMap(ib);
-                        Long dbId = (Long) toReferenceEntity.get(DBID);
-                        Long refDbNode = (Long) toReferenceEntity.remove("referenceDatabaseNode");
-                        String[] labels = (String[]) toReferenceEntity.remove("labels");
-                        Long b = createNode(tx, toReferenceEntity, labels);
-                        TrackingObjects.addCreatedModified(b, graphImporterUserNode, tx);
-                        dbIds.put(dbId, b);
-                        targetNodes.add(b);
-                        referenceEntityMap.computeIfAbsent(targetIdentifier, k -> new HashSet<>()).add(dbId);
-                        createRelationship(tx, b, refDbNode, referenceDatabase, stdRelationshipProp);
-                        //Adding species relationship when exists
-                        Long speciesDbId = taxonomyHelper.getTaxonomyLineage(ib.getTaxid());
-                        if (speciesDbId != null) {
-                            Long speciesNode = dbIds.get(speciesDbId);
-                            if (speciesNode != null) {
-                                createRelationship(tx, b, speciesNode, species, stdRelationshipProp);
-                                importLogger.info("species " + speciesDbId + " added to " + dbId);
-                            }
-                        }
-                        addedReferenceEntities++;
-                    }
+            if (sourceIdentifier != null) rtn.add(new Source(a, getReferenceDatabaseName(tx, referenceEntity) + ":" + sourceIdentifier));
+        }
+        return rtn;
+    }
 
-                    String sourceName = resource + ":" + sourceIdentifier;
-                    String interactionName =  sourceName + " <-> " + targetIdentifier + " (IntAct)";
-                    for (Long b : targetNodes) {
-                        //Check whether the interaction has been added before
-                        if (addedInteractions.contains(intactInteraction.getId())) continue;
-                        addedInteractions.add(intactInteraction.getId());
-
-                        //Add interaction instance (UndirectedInteraction)
-                        Long dbId = ++maxDbId;
-                        Map<String, Object> interaction = createInteractionMap(dbId, interactionName, intactInteraction);
-                        long interactionNode = createNode(tx, interaction, getLabels(UndirectedInteraction.class));
-                        createRelationship(tx, interactionNode, intActReferenceDatabaseNode, referenceDatabase, stdRelationshipProp);
-                        TrackingObjects.addCreatedModified(interactionNode, graphImporterUserNode, tx);
-                        dbIds.put(dbId, interactionNode);
-
-                        //Add interaction source (A)
-                        Map<String, Object> properties = new HashMap<>();
-                        properties.put(STOICHIOMETRY, 1);
-                        properties.put(ORDER, 1);
-                        createRelationship(tx, interactionNode, a, interactor, properties);
-
-                        //Add interaction target (B)
-                        properties.put(ORDER, 2);
-                        createRelationship(tx, interactionNode, b, interactor, properties);
-                    }
+    /**
+     * Collects the distinct interactor B accessions, across the interactions of all the sources, that are not
+     * present in the graph. When an accession is found more than once, the first interactor (in sources order) is kept.
+     */
+    private Map<String, Interactor> collectNewTargets(ExecutorService executor, List<Source> sources)
+            throws InterruptedException, ExecutionException {
+        System.out.print("\rCollecting new interaction targets...");
+        importLogger.info("Collecting new interaction targets");
+        List<Map<String, Interactor>> chunks = lookupInParallel(executor, sources, (service, chunk) -> {
+            Map<String, Interactor> rtn = new LinkedHashMap<>();
+            for (Source source : chunk) {
+                for (Interaction intactInteraction : getIntActInteraction(service, source.name)) {
+                    String targetIdentifier = intactInteraction.getInteractorB().getAcc().trim().split(" ")[0];
+                    Set<Long> targetEntities = referenceEntityMap.get(targetIdentifier);
+                    if (targetEntities == null || targetEntities.isEmpty()) rtn.putIfAbsent(targetIdentifier, intactInteraction.getInteractorB());
+                }
+            }
+            return rtn;
+        });
+        Map<String, Interactor> rtn = new LinkedHashMap<>();
+        chunks.forEach(chunk -> chunk.forEach(rtn::putIfAbsent));
+        importLogger.info("{} new interaction targets collected", rtn.size());
+        return rtn;
+    }
+
+    /**
+     * Builds the property maps and labels of the new targets in parallel, once their species have been resolved.
+     * The dbIds are allocated beforehand in the collection order, so they do not depend on the threads scheduling.
+     */
+    private List<NewTarget> prepareNewTargets(ExecutorService executor, Map<String, Interactor> newTargets)
+            throws InterruptedException, ExecutionException, SQLException {
+        //Prefetching the resources avoids querying the interaction data from several threads
+        interactorResourceService.getAllMappedById().forEach((id, resource) -> {
+            if (resource != null) interactorResourceMap.put(id, resource);
+        });
+
+        Set<Integer> taxIds = new HashSet<>();
+        newTargets.values().forEach(interactor -> taxIds.add(interactor.getTaxid()));
+        Map<Integer, Long> speciesByTaxId = resolveSpecies(taxIds);
+
+        List<Future<NewTarget>> futures = new ArrayList<>();
+        for (Map.Entry<String, Interactor> entry : newTargets.entrySet()) {
+            final Long dbId = ++maxDbId;
+            final String identifier = entry.getKey();
+            final Interactor ib = entry.getValue();
+            final Long speciesDbId = speciesByTaxId.get(ib.getTaxid());
+            futures.add(executor.submit(() -> toNewTarget(identifier, createReferenceEntityMap(dbId, ib), speciesDbId)));
+        }
+        List<NewTarget> rtn = new ArrayList<>(futures.size());
+        for (Future<NewTarget> future : futures) rtn.add(future.get());
+        return rtn;
+    }
+
+    /**
+     * Resolves the species of every distinct taxId once, using a small pool of its own to stay within the
+     * Ensembl REST rate limit
+     *
+     * @return (taxId -> species dbId), where the value is null when the species is not known
+     */
+    Map<Integer, Long> resolveSpecies(Collection<Integer> taxIds) throws InterruptedException, ExecutionException {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(TAXONOMY_THREADS);
+        try {
+            Map<Integer, Future<Long>> futures = new HashMap<>();
+            for (Integer taxId : taxIds) {
+                if (taxId != null) futures.computeIfAbsent(taxId, t -> executor.submit(() -> taxonomyHelper.getTaxonomyLineage(t)));
+            }
+            Map<Integer, Long> rtn = new HashMap<>();
+            for (Map.Entry<Integer, Future<Long>> entry : futures.entrySet()) rtn.put(entry.getKey(), entry.getValue().get());
+            importLogger.info("Species of {} taxIds resolved in {}", rtn.size(), getTimeFormatted(System.currentTimeMillis() - start));
+            return rtn;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param toReferenceEntity as returned by {@link #createReferenceEntityMap(Long, Interactor)}, with the dbId set
+     * @param speciesDbId       as returned by {@link #resolveSpecies(Collection)}, null when not known
+     */
+    NewTarget toNewTarget(String identifier, Map<String, Object> toReferenceEntity, Long speciesDbId) {
+        Long refDbNode = (Long) toReferenceEntity.remove("referenceDatabaseNode");
+        String[] labels = (String[]) toReferenceEntity.remove("labels");
+        Long speciesNode = speciesDbId != null ? dbIds.get(speciesDbId) : null;
+        return new NewTarget(identifier, toReferenceEntity, labels, refDbNode, speciesDbId, speciesNode);
+    }
+
+    /**
+     * Creates the new targets in the graph and keeps track of them in the dbIds and referenceEntityMap maps
+     *
+     * @return the number of ReferenceEntity instances created
+     */
+    private int createNewTargets(Transaction tx, List<NewTarget> targets, Long graphImporterUserNode) {
+        System.out.print("\rCreating new interaction targets...");
+        importLogger.info("Creating {} new interaction targets", targets.size());
+        EventCounter referenceEntitiesAdded = new EventCounter(importLogger, "ReferenceEntity instances added");
+        EventCounter speciesAdded = new EventCounter(importLogger, "species relationships added");
+
+        Map<Long, Long> created = createReferenceEntities(tx, targets, graphImporterUserNode, referenceEntitiesAdded, speciesAdded);
+        for (NewTarget target : targets) {
+            Long dbId = target.getDbId();
+            dbIds.put(dbId, created.get(dbId));
+            referenceEntityMap.computeIfAbsent(target.identifier, k -> new HashSet<>()).add(dbId);
+        }
+        referenceEntitiesAdded.report();
+        speciesAdded.report();
+        return created.size();
+    }
+
+    /**
+     * Creates the ReferenceEntity instances, their InstanceEdits and their referenceDatabase and species relationships
+     * in batches. Shared by the in-memory and the external memory imports.
+     *
+     * @return the (dbId -> Neo4j database ID) of the created ReferenceEntity instances
+     */
+    Map<Long, Long> createReferenceEntities(Transaction tx, List<NewTarget> targets, Long graphImporterUserNode,
+                                            EventCounter referenceEntitiesAdded, EventCounter speciesAdded) {
+        Map<String, List<NewTarget>> byLabels = new LinkedHashMap<>();
+        targets.forEach(target -> byLabels.computeIfAbsent(String.join(":", target.labels), k -> new ArrayList<>()).add(target));
+        Map<Long, Long> rtn = new HashMap<>();
+        List<Long> nodes = new ArrayList<>(targets.size());
+        List<long[]> referenceDatabases = new ArrayList<>();
+        List<long[]> speciesList = new ArrayList<>();
+        for (List<NewTarget> group : byLabels.values()) {
+            List<Map<String, Object>> props = new ArrayList<>(group.size());
+            group.forEach(target -> props.add(target.props));
+            Map<Long, Long> created = createNodes(tx, props, group.get(0).labels, batchSize);
+            for (NewTarget target : group) {
+                Long dbId = target.getDbId();
+                Long b = created.get(dbId);
+                rtn.put(dbId, b);
+                nodes.add(b);
+                if (target.referenceDatabaseNode != null) referenceDatabases.add(new long[]{b, target.referenceDatabaseNode});
+                importLogger.trace("ReferenceEntity {} added for {}", dbId, target.identifier);
+                referenceEntitiesAdded.increment();
+                //Adding species relationship when exists
+                if (target.speciesNode != null) {
+                    speciesList.add(new long[]{b, target.speciesNode});
+                    importLogger.trace("species {} added to {}", target.speciesDbId, dbId);
+                    speciesAdded.increment();
                 }
             }
         }
+        TrackingObjects.addCreatedModified(nodes, graphImporterUserNode, tx, batchSize);
+        createRelationships(tx, referenceDatabases, referenceDatabase, stdRelationshipProp, batchSize);
+        createRelationships(tx, speciesList, species, stdRelationshipProp, batchSize);
+        return rtn;
+    }
 
-        finalise();
+    /**
+     * Creates an UndirectedInteraction between the source (A) and target (B) nodes, together with its
+     * referenceDatabase relationship and InstanceEdit. Shared by the in-memory and the external memory imports.
+     *
+     * @param interaction as returned by {@link #createInteractionMap(Long, String, Interaction)}, with the dbId set
+     * @return the Neo4j database ID of the created interaction
+     */
+    static long createInteraction(Transaction tx, Map<String, Object> interaction, long a, long b,
+                                  Long intActReferenceDatabaseNode, Long graphImporterUserNode) {
+        //Add interaction instance (UndirectedInteraction)
+        long interactionNode = createNode(tx, interaction, getLabels(UndirectedInteraction.class));
+        createRelationship(tx, interactionNode, intActReferenceDatabaseNode, referenceDatabase, stdRelationshipProp);
+        TrackingObjects.addCreatedModified(interactionNode, graphImporterUserNode, tx);
+
+        //Add interaction source (A)
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(STOICHIOMETRY, 1);
+        properties.put(ORDER, 1);
+        createRelationship(tx, interactionNode, a, interactor, properties);
+
+        //Add interaction target (B)
+        properties.put(ORDER, 2);
+        createRelationship(tx, interactionNode, b, interactor, properties);
+        return interactionNode;
+    }
+
+    private static void printSummary(long addedInteractions, long addedReferenceEntities, long start) {
         Long time = System.currentTimeMillis() - start;
         System.out.printf(
                 "\n\t%,d interactions and %,d ReferenceEntity objects have been added to the graph (%s). %n",
-                addedInteractions.size(),
+                addedInteractions,
                 addedReferenceEntities,
                 getTimeFormatted(time)
         );
     }
 
+    /**
+     * Computes what {@link #addInteractionData(Transaction)} would write to the graph without modifying it.
+     * Discovery, interaction resolution and target matching are the same as in the import, but since nothing
+     * is written the IntAct lookups run in parallel, each worker using its own connection to the interaction data.
+     *
+     * @param tx Neo4j Driver transaction, only used for reading
+     * @return the plan with the per category counts and the measured times
+     */
+    public ImportPlan plan(Transaction tx) {
+        long start = System.currentTimeMillis();
+        ImportPlan plan = new ImportPlan();
+        initialise();
+
+        List<Source> sources = getSources(tx);
+        plan.setSources(sources.size());
+        plan.setDiscoveryMillis(System.currentTimeMillis() - start);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            lookupInParallel(executor, sources, (service, chunk) -> {
+                planInteractions(service, chunk, plan);
+                return null;
+            });
+
+            long taxonomyStart = System.currentTimeMillis();
+            Map<Long, InteractorResource> resources = interactorResourceService.getAllMappedById();
+            Set<Integer> taxIds = new HashSet<>();
+            plan.getNewTargets().values().forEach(interactor -> taxIds.add(interactor.getTaxid()));
+            Map<Integer, Long> speciesByTaxId = resolveSpecies(taxIds);
+            for (Map.Entry<String, Interactor> target : plan.getNewTargets().entrySet()) {
+                Interactor interactor = target.getValue();
+                String identifier = target.getKey();
+                String rawIdentifier = identifier.contains(":") ? identifier.split(":")[1] : identifier;
+                Long speciesDbId = speciesByTaxId.get(interactor.getTaxid());
+                plan.addReferenceEntity(
+                        getReferenceEntityClass(resources.get(interactor.getInteractorResourceId()), rawIdentifier),
+                        speciesDbId != null && dbIds.containsKey(speciesDbId)
+                );
+            }
+            plan.setTaxonomyMillis(System.currentTimeMillis() - taxonomyStart);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The import plan has been interrupted", e);
+        } catch (ExecutionException | SQLException e) {
+            throw new IllegalStateException("An error occurred while computing the import plan", e);
+        } finally {
+            executor.shutdownNow();
+            finalise();
+        }
+
+        plan.setElapsedMillis(System.currentTimeMillis() - start);
+        return plan;
+    }
+
+    private void planInteractions(InteractionService service, List<Source> sources, ImportPlan plan) {
+        for (Source source : sources) {
+            long start = System.nanoTime();
+            List<Interaction> interactions = getIntActInteraction(service, source.name);
+            plan.addLookup(source.name, interactions.size(), System.nanoTime() - start);
+
+            for (Interaction intactInteraction : interactions) {
+                final String targetIdentifier = intactInteraction.getInteractorB().getAcc().trim().split(" ")[0];
+                final Set<Long> targetEntities = referenceEntityMap.get(targetIdentifier);
+                if (targetEntities != null && !targetEntities.isEmpty()) {
+                    if (targetEntities.stream().anyMatch(dbIds::containsKey)) plan.addInteraction(intactInteraction.getId());
+                } else {
+                    plan.addNewTarget(targetIdentifier, intactInteraction.getInteractorB());
+                    plan.addInteraction(intactInteraction.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the IntAct lookups of the sources in parallel since they only read the interaction data. Every chunk of
+     * QUERIES_OFFSET sources uses its own connection, which also keeps the interactors cache bounded (see cleanInteractorsCache)
+     *
+     * @return the result of every chunk, in the same order as the sources
+     */
+    private <T> List<T> lookupInParallel(ExecutorService executor, List<Source> sources, ChunkLookup<T> lookup)
+            throws InterruptedException, ExecutionException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (int from = 0; from < sources.size(); from += QUERIES_OFFSET) {
+            List<Source> chunk = sources.subList(from, Math.min(sources.size(), from + QUERIES_OFFSET));
+            futures.add(executor.submit(() -> {
+                InteractorsDatabase database = new InteractorsDatabase(getInteractionDataFile());
+                try {
+                    return lookup.apply(new InteractionService(database), chunk);
+                } finally {
+                    database.getConnection().close();
+                }
+            }));
+        }
+        List<T> rtn = new ArrayList<>(futures.size());
+        int i = 0;
+        for (Future<T> future : futures) {
+            rtn.add(future.get());
+            i = Math.min(sources.size(), i + QUERIES_OFFSET);
+            ProgressBarUtils.updateProgressBar(i, sources.size());
+        }
+        return rtn;
+    }
+
+    @FunctionalInterface
+    private interface ChunkLookup<T> {
+        T apply(InteractionService service, List<Source> chunk) throws SQLException;
+    }
+
+    /**
+     * A target ReferenceEntity instance: its node and the identifier used to query the interaction data
+     */
+    private static class Source {
+        private final Long node;
+        private final String name;
+
+        Source(Long node, String name) {
+            this.node = node;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The interactor B fields its ReferenceEntity instance is built from, small enough to be kept on disk for every
+     * planned interaction (see {@link ExternalMemoryImport})
+     */
+    static class TargetInteractor implements Serializable {
+        private final String acc;
+        private final Long interactorResourceId;
+        private final String geneName;
+        private final String alias;
+        private final String synonyms;
+        private final Integer taxId;
+
+        TargetInteractor(Interactor interactor) {
+            this.acc = interactor.getAcc();
+            this.interactorResourceId = interactor.getInteractorResourceId();
+            this.geneName = interactor.getAliasWithoutSpecies(false);
+            this.alias = interactor.getAlias();
+            this.synonyms = interactor.getSynonyms();
+            this.taxId = interactor.getTaxid();
+        }
+
+        Integer getTaxId() {
+            return taxId;
+        }
+    }
+
+    /**
+     * A ReferenceEntity instance to be created for an interaction target not present in the graph
+     */
+    static class NewTarget {
+        private final String identifier;
+        private final Map<String, Object> props;
+        private final String[] labels;
+        private final Long referenceDatabaseNode;
+        private final Long speciesDbId;
+        private final Long speciesNode;  // null when the species is not in the graph
+
+        NewTarget(String identifier, Map<String, Object> props, String[] labels, Long referenceDatabaseNode, Long speciesDbId, Long speciesNode) {
+            this.identifier = identifier;
+            this.props = props;
+            this.labels = labels;
+            this.referenceDatabaseNode = referenceDatabaseNode;
+            this.speciesDbId = speciesDbId;
+            this.speciesNode = speciesNode;
+        }
+
+        Long getDbId() {
+            return (Long) props.get(DBID);
+        }
+    }
+
     /**
      * Creates a Neo4j node
      * @param tx Neo4j Driver transaction
@@ -199,7 +598,9 @@ public class InteractionImporter {
                 "CREATE (n:%s) SET n = $props RETURN ID(n)", String.join(":", labels));
         Result result = tx.run(query, parameters("props", props));
         Record record = result.single();
-        return record.get("ID(n)").asLong();
+        long id = record.get("ID(n)").asLong();
+        if (journal != null) journal.recordNode(id, props, labels);
+        return id;
     }
 
     /**
@@ -216,9 +617,71 @@ public class InteractionImporter {
                 "MATCH (n2:DatabaseObject) WHERE ID(n2) = $n2 " +
                 "CREATE (n1)-[r:%s]->(n2) SET r = $props", type.name());
         tx.run(query, parameters("n1", n1, "n2", n2, "props", props));
+        if (journal != null) journal.recordRelationship(n1, n2, type.name(), props);
+    }
+
+    /**
+     * Creates Neo4j nodes with the same labels, one query per batch
+     * @param tx Neo4j Driver transaction
+     * @param props The properties of every node, including their dbId
+     * @param labels Labels of the nodes
+     * @param batchSize Number of nodes per query, adjusted to the observed write time
+     * @return The (dbId -> Neo4j database ID) of the created nodes
+     */
+    public static Map<Long, Long> createNodes(Transaction tx, List<Map<String, Object>> props, String[] labels, AdaptiveBatchSize batchSize) {
+        String query = String.format(
+                "UNWIND $rows AS row CREATE (n:%s) SET n = row RETURN row.dbId AS dbId, ID(n) AS id", String.join(":", labels));
+        Map<Long, Long> rtn = new HashMap<>();
+        for (int from = 0, to; from < props.size(); from = to) {
+            int size = batchSize.getSize();
+            to = Math.min(props.size(), from + size);
+            long start = System.currentTimeMillis();
+            Result result = tx.run(query, parameters("rows", props.subList(from, to)));
+            while (result.hasNext()) {
+                Record record = result.next();
+                rtn.put(record.get("dbId").asLong(), record.get("id").asLong());
+            }
+            if (to - from < size) batchSize.partial(to - from, System.currentTimeMillis() - start);
+            else batchSize.success(to - from, System.currentTimeMillis() - start);
+        }
+        if (journal != null) props.forEach(p -> journal.recordNode(rtn.get((Long) p.get(DBID)), p, labels));
+        return rtn;
+    }
+
+    /**
+     * Creates relationships of the same type and properties between pairs of Neo4j nodes, one query per batch
+     * @param tx Neo4j Driver transaction
+     * @param pairs Source and target node database IDs of every relationship
+     * @param type Type of the relationships to be created
+     * @param props Props to be set on every relationship
+     * @param batchSize Number of relationships per query, adjusted to the observed write time
+     */
+    public static void createRelationships(Transaction tx, List<long[]> pairs, RelationshipType type, Map<String, Object> props,
+                                           AdaptiveBatchSize batchSize) {
+        String query = String.format(
+                "UNWIND $rows AS row " +
+                "MATCH (n1:DatabaseObject) WHERE ID(n1) = row.n1 " +
+                "MATCH (n2:DatabaseObject) WHERE ID(n2) = row.n2 " +
+                "CREATE (n1)-[r:%s]->(n2) SET r = $props", type.name());
+        for (int from = 0, to; from < pairs.size(); from = to) {
+            int size = batchSize.getSize();
+            to = Math.min(pairs.size(), from + size);
+            List<Map<String, Object>> rows = new ArrayList<>(to - from);
+            for (long[] pair : pairs.subList(from, to)) {
+                Map<String, Object> row = new HashMap<>();
+                row.put("n1", pair[0]);
+                row.put("n2", pair[1]);
+                rows.add(row);
+            }
+            long start = System.currentTimeMillis();
+            tx.run(query, parameters("rows", rows, "props", props)).consume();
+            if (rows.size() < size) batchSize.partial(rows.size(), System.currentTimeMillis() - start);
+            else batchSize.success(rows.size(), System.currentTimeMillis() - start);
+        }
+        if (journal != null) pairs.forEach(pair -> journal.recordRelationship(pair[0], pair[1], type.name(), props));
     }
 
-    private Map<String, Object> createInteractionMap(Long dbId, String name, Interaction interaction){
+    Map<String, Object> createInteractionMap(Long dbId, String name, Interaction interaction){
         String interactionURL = "https://www.ebi.ac.uk/intact/pages/interactions/interactions.xhtml?query=";
         List<String> accession = new ArrayList<>();
         interaction.getInteractionDetailsList().forEach(details -> accession.add(details.getInteractionAc()));
@@ -236,15 +699,22 @@ public class InteractionImporter {
         return rtn;
     }
 
-    private Map<String, Object> createReferenceEntityMap(Interactor interactor){
-        InteractorResource resource = getInteractorResource(interactor);
-        String identifier = interactor.getAcc().split(" ")[0].trim();
+    Map<String, Object> createReferenceEntityMap(Long dbId, Interactor interactor){
+        return createReferenceEntityMap(dbId, new TargetInteractor(interactor));
+    }
+
+    /**
+     * @param dbId the dbId of the ReferenceEntity
+     */
+    Map<String, Object> createReferenceEntityMap(Long dbId, TargetInteractor interactor){
+        InteractorResource resource = getInteractorResource(interactor.interactorResourceId);
+        String identifier = interactor.acc.split(" ")[0].trim();
         String rawIdentifier = identifier.contains(":") ? identifier.split(":")[1] : identifier;
 
         Map<String, Object> rtn = new HashMap<>();
-        rtn.put(DBID, ++maxDbId);
+        rtn.put(DBID, dbId);
 
-        String gn = interactor.getAliasWithoutSpecies(false);
+        String gn = interactor.geneName;
         if (gn != null && !gn.isEmpty()) {
             String[] geneName = new String[1];
             geneName[0] = gn;
@@ -254,15 +724,15 @@ public class InteractionImporter {
             rtn.put(NAME, identifier);               //Unified to Reactome name
         }
 
-        Class<?> schemaClass;
+        Class<?> schemaClass = getReferenceEntityClass(resource, rawIdentifier);
         Long refDbId;
-        if (resource.getName().toLowerCase().contains("uniprot")) {
+        if (isUniProt(resource)) {
             refDbId = REACTOME_UNIPROT_REFERENCE_DATABASE;
             //displayName added below
             rtn.put(IDENTIFIER, rawIdentifier.split("-")[0]);  //DO NOT MOVE OUTSIDE
             rtn.put(NAME, "UniProt");
 
-            if (rawIdentifier.contains("-")) {
+            if (schemaClass == ReferenceIsoform.class) {
                 //for cases like UniProt:O00187-PRO_0000027598 MASP2
                 if(rawIdentifier.split("-")[1].contains("PRO")){
                     rtn.put("url", "https://www.uniprot.org/uniprotkb/" + rawIdentifier.split("-")[0] +"/entry#" + rawIdentifier.split("-")[1]);
@@ -271,16 +741,14 @@ public class InteractionImporter {
                 }
                 rtn.put(VARIANT_IDENTIFIER, rawIdentifier);
                 //isofromParent //TODO
-                schemaClass = ReferenceIsoform.class;
             } else {
                 rtn.put("url", "https://www.uniprot.org/uniprotkb/" + rawIdentifier + "/entry");
-                schemaClass = ReferenceGeneProduct.class;
             }
-        } else if (resource.getName().toLowerCase().contains("chebi")) {
+        } else if (schemaClass == ReferenceMolecule.class) {
             refDbId = REACTOME_CHEBI_REFERENCE_DATABASE;
             //displayName added below
             rtn.put(IDENTIFIER, rawIdentifier);  //DO NOT MOVE OUTSIDE
-            String alias = interactor.getAlias();
+            String alias = interactor.alias;
             if(alias != null && !alias.isEmpty()) {
                 String[] name = new String[1];
                 name[0] = alias;
@@ -288,17 +756,15 @@ public class InteractionImporter {
             }
             rtn.put("databaseName", resource.getName());
             rtn.put("url", "https://www.ebi.ac.uk/chebi/searchId.do?chebiId=CHEBI:" + rawIdentifier);
-            schemaClass = ReferenceMolecule.class;
         } else {
-            resource.setName("IntAct");
+            if (resource != null) resource.setName("IntAct");
             refDbId = intActReferenceDatabaseDbId;
             rtn.put(IDENTIFIER, rawIdentifier);  //DO NOT MOVE OUTSIDE
-            rtn.put("databaseName", resource.getName());
+            rtn.put("databaseName", "IntAct");
             rtn.put("url", "https://www.ebi.ac.uk/intact/query/" + rawIdentifier);
-            schemaClass = ReferenceGeneProduct.class;
         }
-        if (interactor.getSynonyms() != null && !interactor.getSynonyms().isEmpty()) {
-            rtn.put("secondaryIdentifier", interactor.getSynonyms().split("\\$"));
+        if (interactor.synonyms != null && !interactor.synonyms.isEmpty()) {
+            rtn.put("secondaryIdentifier", interactor.synonyms.split("\\$"));
         }
         rtn.put("schemaClass", schemaClass.getSimpleName());
 
@@ -309,11 +775,31 @@ public class InteractionImporter {
         return rtn;
     }
 
+    /**
+     * The schema class of the ReferenceEntity created for an interactor, used both to create it and to plan it
+     *
+     * @param resource the interactor resource, null when it cannot be resolved (treated as an IntAct one)
+     */
+    private static Class<?> getReferenceEntityClass(InteractorResource resource, String rawIdentifier) {
+        if (isUniProt(resource)) return rawIdentifier.contains("-") ? ReferenceIsoform.class : ReferenceGeneProduct.class;
+        if (isChEBI(resource)) return ReferenceMolecule.class;
+        return ReferenceGeneProduct.class;
+    }
+
+    private static boolean isUniProt(InteractorResource resource) {
+        return resource != null && resource.getName().toLowerCase().contains("uniprot");
+    }
+
+    private static boolean isChEBI(InteractorResource resource) {
+        return resource != null && resource.getName().toLowerCase().contains("chebi");
+    }
+
     private void initialise() {
         try {
             System.out.print("\n\nCleaning instances cache...");
             importLogger.info("Cleaning instances cache");
             if (useUserInteractionData) {
+                decompressUserInteractionData();
                 if (isSQLLite) {
                     System.out.print("\rConnecting to the provided interaction data...");
                     importLogger.info("Connecting to the provided interaction data");
@@ -344,12 +830,27 @@ public class InteractionImporter {
         }
     }
 
+    /**
+     * IntAct distributes the interaction data compressed, so gzip and zip files are decompressed to a temporary
+     * file (removed in finalise) that is used from then on instead of the provided one
+     */
+    private static void decompressUserInteractionData() throws IOException {
+        File file = new File(userInteractionDataFile);
+        if (!CompressedFiles.isCompressed(file)) return;
+        System.out.print("\rDecompressing the provided interaction data...");
+        importLogger.info("Decompressing {}", file.getPath());
+        long start = System.currentTimeMillis();
+        long bytes = CompressedFiles.decompress(file, new File(DECOMPRESSED_DATA_TMP_FILE));
+        userInteractionDataFile = DECOMPRESSED_DATA_TMP_FILE;
+        importLogger.info("{} decompressed: {} bytes in {}", file.getPath(), bytes, getTimeFormatted(System.currentTimeMillis() - start));
+    }
+
     //It seems like the best way of cleaning the cache is to close the connection and connect again
-    private void cleanInteractorsCache(){
+    void cleanInteractorsCache(){
         try {
             importLogger.trace("Cleaning interactors cache");
             interactorsDatabase.getConnection().close();
-            interactorsDatabase = new InteractorsDatabase(useUserInteractionData && isSQLLite ? userInteractionDataFile : INTERACTION_DATA_TMP_FILE);
+            interactorsDatabase = new InteractorsDatabase(getInteractionDataFile());
             interactionService = new InteractionService(interactorsDatabase);
             interactorResourceService = new InteractorResourceService(interactorsDatabase);
             importLogger.trace("Interactors cache cleaned");
@@ -358,6 +859,10 @@ public class InteractionImporter {
         }
     }
 
+    private static String getInteractionDataFile() {
+        return useUserInteractionData && isSQLLite ? userInteractionDataFile : INTERACTION_DATA_TMP_FILE;
+    }
+
     private void finalise() {
         try {
             interactorsDatabase.getConnection().close();
@@ -365,6 +870,7 @@ public class InteractionImporter {
             importLogger.error(e.getMessage(), e);
         }
         FileUtils.deleteQuietly(new File(INTERACTION_DATA_TMP_FILE));
+        FileUtils.deleteQuietly(new File(DECOMPRESSED_DATA_TMP_FILE));
     }
 
     /**
@@ -446,21 +952,24 @@ public class InteractionImporter {
         }
     }
 
-    private List<Interaction> getIntActInteraction(String resource, String identifier){
+    List<Interaction> getIntActInteraction(String target){
+        return getIntActInteraction(interactionService, target);
+    }
+
+    private static List<Interaction> getIntActInteraction(InteractionService service, String target){
         try {
-            String target = resource + ":" + identifier;
-            return interactionService.getInteractions(target, "static");
+            return service.getInteractions(target, "static");
         } catch (InvalidInteractionResourceException | SQLException e) {
             return new ArrayList<>();
         }
     }
 
-    private InteractorResource getInteractorResource(Interactor interactor){
-        InteractorResource ir = interactorResourceMap.get(interactor.getInteractorResourceId());
+    private InteractorResource getInteractorResource(Long interactorResourceId){
+        InteractorResource ir = interactorResourceMap.get(interactorResourceId);
         if(ir == null) {
             try {
-                ir = interactorResourceService.getAllMappedById().get(interactor.getInteractorResourceId());
-                interactorResourceMap.put(interactor.getInteractorResourceId(), ir);
+                ir = interactorResourceService.getAllMappedById().get(interactorResourceId);
+                if (ir != null) interactorResourceMap.put(interactorResourceId, ir);
             } catch (SQLException e) {
                 //Nothing here
             }
@@ -475,14 +984,7 @@ public class InteractionImporter {
      * @return Array of Neo4j SchemaClassCount
      */
     public static String[] getLabels(Class<?> clazz) {
-
-        if (!labelMap.containsKey(clazz)) {
-            String[] labels = getAllClassNames(clazz);
-            labelMap.put(clazz, labels);
-            return labels;
-        } else {
-            return labelMap.get(clazz);
-        }
+        return labelMap.computeIfAbsent(clazz, InteractionImporter::getAllClassNames);
     }
 
     /**
@@ -518,8 +1020,39 @@ public class InteractionImporter {
         return dbIds;
     }
 
+    /**
+     * The only existing nodes the external memory import creates relationships to, other than ReferenceEntities
+     */
+    private static Map<Long, Long> fetchReferenceDbIds(Transaction tx) {
+        Map<Long, Long> dbIds = new HashMap<>();
+        String query = "MATCH (n:DatabaseObject) WHERE n:ReferenceDatabase OR n:Taxon RETURN ID(n), n.dbId";
+        Result result = tx.run(query);
+        while (result.hasNext()) {
+            Record record = result.next();
+            dbIds.put(record.get("n.dbId").asLong(), record.get("ID(n)").asLong());
+        }
+        return dbIds;
+    }
+
+    /**
+     * The only existing nodes the import creates relationships to: the interactors (source and target
+     * ReferenceEntities), their ReferenceDatabase and their species
+     *
+     * @return the (node ID -> dbId) map of these nodes, so the journal can record the relationships by dbId
+     */
+    private static Map<Long, Long> fetchJournalEndpoints(Transaction tx) {
+        Map<Long, Long> nodeDbIds = new HashMap<>();
+        String query = "MATCH (n:DatabaseObject) WHERE n:ReferenceEntity OR n:ReferenceDatabase OR n:Taxon RETURN ID(n), n.dbId";
+        Result result = tx.run(query);
+        while (result.hasNext()) {
+            Record record = result.next();
+            nodeDbIds.put(record.get("ID(n)").asLong(), record.get("n.dbId").asLong());
+        }
+        return nodeDbIds;
+    }
+
     private static Map<Integer, Long> fetchTaxIds(Transaction tx) {
-        Map<Integer, Long> taxIdDbId = new HashMap<>();
+        Map<Integer, Long> taxIdDbId = new ConcurrentHashMap<>();
         // root does not have a taxId
         String query = "MATCH (n:DatabaseObject:Taxon) WHERE n.taxId IS NOT NULL RETURN n.taxId, n.dbId";
         Result result = tx.run(query);
@@ -0,0 +1,306 @@
+package org.reactome.server.graph.interactors;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.exceptions.Neo4jException;
+import org.neo4j.driver.exceptions.RetryableException;
+import org.reactome.server.graph.utils.AdaptiveBatchSize;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.neo4j.driver.Values.parameters;
+import static org.reactome.server.graph.interactors.ImportJournal.*;
+import static org.reactome.server.graph.utils.FormatUtils.getTimeFormatted;
+
+/**
+ * Applies a journal recorded by {@link ImportJournal} to a graph with the same baseline as the one where
+ * the import was originally run. Nodes and relationships are grouped by labels and type respectively and
+ * written with UNWIND queries, each batch in its own transaction. The batch size is adapted to the observed
+ * commit latency and transient errors (see {@link AdaptiveBatchSize}).
+ * <p>
+ * Since every batch is committed on its own, a replay that fails halfway can be run again: when the target graph
+ * max dbId lies between the journal baseline and the max dbId allocated by the journal, nodes are merged on their
+ * dbId and relationships on their endpoints, type and order (set on every relationship created by the import),
+ * so the operations already applied are skipped.
+ */
+public class JournalReplayer {
+
+    private static final Logger importLogger = LoggerFactory.getLogger("import");
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final String fileName;
+    private final AdaptiveBatchSize batchSize;
+
+    private final Map<String, List<Map<String, Object>>> pendingNodes = new HashMap<>();          // labels -> rows
+    private final Map<String, List<Map<String, Object>>> pendingRelationships = new HashMap<>();  // type -> rows
+    private BatchWriter writer;
+    private boolean resuming = false;
+    private long nodes = 0;
+    private long relationships = 0;
+
+    public JournalReplayer(String fileName, AdaptiveBatchSize batchSize) {
+        this.fileName = fileName;
+        this.batchSize = batchSize;
+    }
+
+    public void replay(Session session) throws IOException {
+        long start = System.currentTimeMillis();
+        System.out.print("\rReplaying import journal " + fileName + "...");
+        importLogger.info("Replaying import journal {}", fileName);
+
+        try (BufferedReader reader = open()) {
+            String line = reader.readLine();
+            if (line == null) throw new IllegalStateException("The import journal " + fileName + " is empty");
+            resuming = checkBaseline(session, new JSONObject(line));
+
+            boolean ended = apply(reader, (query, rows) -> {
+                try (Transaction tx = session.beginTransaction()) {
+                    tx.run(query, parameters("rows", rows)).consume();
+                    tx.commit();
+                }
+            });
+            if (!ended) importLogger.warn("The import journal {} does not have an end record and might be truncated", fileName);
+        }
+
+        Long time = System.currentTimeMillis() - start;
+        importLogger.info("Import journal replayed: {} nodes and {} relationships, {}", nodes, relationships, batchSize.getReport());
+        System.out.printf(
+                "\r\t%,d nodes and %,d relationships have been replayed to the graph (%s). %n\t%s%n",
+                nodes,
+                relationships,
+                getTimeFormatted(time),
+                batchSize.getReport()
+        );
+    }
+
+    /**
+     * Applies the operations following the header
+     *
+     * @return true when the end record has been found
+     */
+    boolean apply(BufferedReader reader, BatchWriter writer) throws IOException {
+        this.writer = writer;
+        boolean ended = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            JSONObject op = new JSONObject(line);
+            switch (op.getString(OP)) {
+                case OP_NODE:
+                    addNode(op);
+                    break;
+                case OP_RELATIONSHIP:
+                    addRelationship(op);
+                    break;
+                case OP_END:
+                    ended = true;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation '" + op.getString(OP) + "' in " + fileName);
+            }
+        }
+        flushNodes();
+        for (String type : new ArrayList<>(pendingRelationships.keySet())) writeRelationships(type);
+        return ended;
+    }
+
+    private BufferedReader open() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+        if (fileName.endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Journals can only be applied on top of the graph they were recorded against, otherwise
+     * the recorded dbIds would clash with (or point to) the wrong instances. A graph partially populated
+     * by a previous replay of the same journal is accepted as well.
+     *
+     * @return true when a previous replay has to be resumed
+     */
+    private boolean checkBaseline(Session session, JSONObject header) throws IOException {
+        if (!OP_HEADER.equals(header.optString(OP)) || header.optInt(VERSION_KEY) != VERSION) {
+            throw new IllegalStateException(fileName + " is not a version " + VERSION + " import journal");
+        }
+        long baseline = header.getLong(MAX_DB_ID);
+        long maxDbId = session.readTransaction(tx -> {
+            Record record = tx.run("MATCH (n:DatabaseObject) RETURN max(n.dbId) AS maxDbId").single();
+            return record.get("maxDbId").asLong();
+        });
+        if (baseline == maxDbId) return false;
+
+        Long journalMaxDbId = getJournalMaxDbId();
+        if (journalMaxDbId == null || maxDbId < baseline || maxDbId > journalMaxDbId) {
+            throw new IllegalStateException(String.format(
+                    "The import journal was recorded against a graph with max dbId %d (%s) but the target graph max dbId is %d",
+                    baseline, journalMaxDbId == null ? "truncated journal" : "up to " + journalMaxDbId + " once applied", maxDbId));
+        }
+        importLogger.warn("The target graph max dbId is {}, resuming a previous replay of {}", maxDbId, fileName);
+        System.out.printf("\rResuming a previous replay of %s (target graph max dbId %d)%n", fileName, maxDbId);
+        return true;
+    }
+
+    /**
+     * @return the max dbId allocated by the import, as stated in the end record, or null when there is no end record
+     */
+    private Long getJournalMaxDbId() throws IOException {
+        try (BufferedReader reader = open()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                JSONObject op = new JSONObject(line);
+                if (OP_END.equals(op.getString(OP))) return op.has(MAX_DB_ID) ? op.getLong(MAX_DB_ID) : null;
+            }
+        }
+        return null;
+    }
+
+    private void addNode(JSONObject op) {
+        JSONArray labels = op.getJSONArray(LABELS);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < labels.length(); i++) names.add(labels.getString(i));
+        String key = String.join(":", names);
+        List<Map<String, Object>> rows = pendingNodes.computeIfAbsent(key, k -> new ArrayList<>());
+        rows.add(getProperties(op));
+        if (rows.size() >= batchSize.getSize()) writeNodes(key);
+    }
+
+    private void addRelationship(JSONObject op) {
+        Map<String, Object> row = new HashMap<>();
+        row.put(FROM, op.getLong(FROM));
+        row.put(TO, op.getLong(TO));
+        row.put(PROPERTIES, getProperties(op));
+        String type = op.getString(TYPE);
+        List<Map<String, Object>> rows = pendingRelationships.computeIfAbsent(type, k -> new ArrayList<>());
+        rows.add(row);
+        if (rows.size() >= batchSize.getSize()) writeRelationships(type);
+    }
+
+    /**
+     * Every labels set and relationship type is written once it fills a batch, so the batches are full (and meaningful
+     * for the batch size controller) even when the operations of different groups are interleaved in the journal
+     */
+    private void writeNodes(String labels) {
+        List<Map<String, Object>> rows = pendingNodes.remove(labels);
+        String query = resuming
+                ? String.format("UNWIND $rows AS row MERGE (n:DatabaseObject {dbId: row.dbId}) ON CREATE SET n = row, n:%s", labels)
+                : String.format("UNWIND $rows AS row CREATE (n:%s) SET n = row", labels);
+        write(query, rows, rows.size() < batchSize.getSize());
+        nodes += rows.size();
+        System.out.printf("\rReplaying import journal: %,d nodes and %,d relationships", nodes, relationships);
+    }
+
+    private void flushNodes() {
+        for (String labels : new ArrayList<>(pendingNodes.keySet())) writeNodes(labels);
+    }
+
+    /**
+     * The pending nodes are always written before the relationships so these can be matched by dbId
+     */
+    private void writeRelationships(String type) {
+        flushNodes();
+        List<Map<String, Object>> rows = pendingRelationships.remove(type);
+        String create = resuming
+                ? "MERGE (n1)-[r:%s {order: row.props.order}]->(n2) ON CREATE SET r = row.props"
+                : "CREATE (n1)-[r:%s]->(n2) SET r = row.props";
+        String query = String.format(
+                "UNWIND $rows AS row " +
+                "MATCH (n1:DatabaseObject {dbId: row.from}) " +
+                "MATCH (n2:DatabaseObject {dbId: row.to}) " + create, type);
+        write(query, rows, rows.size() < batchSize.getSize());
+        relationships += rows.size();
+        System.out.printf("\rReplaying import journal: %,d nodes and %,d relationships", nodes, relationships);
+    }
+
+    /**
+     * Writes the rows in a transaction of its own. On retryable errors (e.g. lock timeouts, memory pressure
+     * on the server or a lost connection) the transaction has been rolled back, so the rows are retried after a back off, split in
+     * smaller batches when the batch size has been reduced meanwhile.
+     *
+     * @param partial whether the rows are fewer than a batch (nodes written ahead of their relationships or end of input)
+     */
+    private void write(String query, List<Map<String, Object>> rows, boolean partial) {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.currentTimeMillis();
+            try {
+                writer.write(query, rows);
+                if (partial) batchSize.partial(rows.size(), System.currentTimeMillis() - start);
+                else batchSize.success(rows.size(), System.currentTimeMillis() - start);
+                return;
+            } catch (Neo4jException e) {
+                //Transient errors, unavailable servers and expired sessions are the ones the driver also retries
+                if (!(e instanceof RetryableException)) throw e;
+                long backoff = batchSize.failure(attempt);
+                if (attempt == MAX_ATTEMPTS) throw e;
+                importLogger.warn("Retryable error writing {} rows (attempt {}), retrying in {}ms: {}",
+                        rows.size(), attempt, backoff, e.getMessage());
+                sleep(backoff);
+                int size = batchSize.getSize();
+                if (rows.size() > size) {
+                    for (int i = 0; i < rows.size(); i += size) {
+                        List<Map<String, Object>> split = rows.subList(i, Math.min(rows.size(), i + size));
+                        write(query, split, partial || split.size() < size);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a write query with its rows, committing them in a transaction of its own
+     */
+    @FunctionalInterface
+    interface BatchWriter {
+        void write(String query, List<Map<String, Object>> rows);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while replaying the import journal", e);
+        }
+    }
+
+    /**
+     * The properties recorded as floating point (see {@link ImportJournal}) are restored as such
+     */
+    private static Map<String, Object> getProperties(JSONObject op) {
+        Set<String> doubles = new HashSet<>();
+        JSONArray names = op.optJSONArray(DOUBLES);
+        if (names != null) for (int i = 0; i < names.length(); i++) doubles.add(names.getString(i));
+        return toMap(op.getJSONObject(PROPERTIES), doubles);
+    }
+
+    private static Map<String, Object> toMap(JSONObject json, Set<String> doubles) {
+        Map<String, Object> rtn = new HashMap<>();
+        for (String key : json.keySet()) rtn.put(key, toValue(json.get(key), doubles.contains(key)));
+        return rtn;
+    }
+
+    private static Object toValue(Object value, boolean isDouble) {
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> rtn = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) rtn.add(toValue(array.get(i), isDouble));
+            return rtn;
+        }
+        if (isDouble && value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof BigDecimal) return ((BigDecimal) value).doubleValue();
+        if (value instanceof BigInteger) return ((BigInteger) value).longValue();
+        if (JSONObject.NULL.equals(value)) return null;
+        return value;
+    }
+}
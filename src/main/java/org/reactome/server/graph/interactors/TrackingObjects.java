@@ -6,12 +6,15 @@ import org.neo4j.graphdb.RelationshipType;
 import org.reactome.server.graph.domain.model.InstanceEdit;
 import org.reactome.server.graph.domain.model.Person;
 import org.reactome.server.graph.domain.model.ReferenceDatabase;
+import org.reactome.server.graph.utils.AdaptiveBatchSize;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.reactome.server.graph.interactors.InteractionImporter.DBID;
@@ -20,7 +23,9 @@ import static org.reactome.server.graph.interactors.InteractionImporter.ORDER;
 import static org.reactome.server.graph.interactors.InteractionImporter.STOICHIOMETRY;
 import static org.reactome.server.graph.interactors.InteractionImporter.maxDbId;
 import static org.reactome.server.graph.interactors.InteractionImporter.createNode;
+import static org.reactome.server.graph.interactors.InteractionImporter.createNodes;
 import static org.reactome.server.graph.interactors.InteractionImporter.createRelationship;
+import static org.reactome.server.graph.interactors.InteractionImporter.createRelationships;
 
 class TrackingObjects {
 
@@ -72,6 +77,34 @@ class TrackingObjects {
 //        ReactomeBatchImporter.saveRelationship(m, node, modified, properties);
     }
 
+    /**
+     * Same as {@link #addCreatedModified(Long, Long, Transaction)} for many nodes, writing in batches
+     */
+    static void addCreatedModified(List<Long> nodes, Long graphImporterUserNode, Transaction tx, AdaptiveBatchSize batchSize) {
+        Class<?> schemaClass = InstanceEdit.class;
+        String dateTime = formatter.format(new Date());
+        List<Map<String, Object>> instanceEdits = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            Map<String, Object> instanceEdit = new HashMap<>();
+            instanceEdit.put(DBID, ++maxDbId);
+            instanceEdit.put(NAME, "Interactions Importer, " + dateTime);
+            instanceEdit.put("dateTime", dateTime);
+            instanceEdit.put("schemaClass", schemaClass.getSimpleName());
+            instanceEdits.add(instanceEdit);
+        }
+        Map<Long, Long> ids = createNodes(tx, instanceEdits, InteractionImporter.getLabels(schemaClass), batchSize);
+
+        List<long[]> authors = new ArrayList<>(nodes.size());
+        List<long[]> createdNodes = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            Long c = ids.get((Long) instanceEdits.get(i).get(DBID));
+            authors.add(new long[]{graphImporterUserNode, c});
+            createdNodes.add(new long[]{c, nodes.get(i)});
+        }
+        createRelationships(tx, authors, author, properties, batchSize);
+        createRelationships(tx, createdNodes, created, properties, batchSize);
+    }
+
     private static Long createInstanceEditNode(Long graphImporterUserNode, Transaction tx) {
         Class<?> schemaClass = InstanceEdit.class;
         String dateTime = formatter.format(new Date());
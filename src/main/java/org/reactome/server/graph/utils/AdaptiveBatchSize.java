@@ -0,0 +1,161 @@
+package org.reactome.server.graph.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Tunes the number of rows written per batch (and therefore per commit) within the configured bounds.
+ * <p>
+ * The size keeps growing while the observed throughput keeps rising, steps back when it drops (other than right
+ * after a back-off), and is halved when a batch fails with a transient error, takes longer than
+ * {@link #MAX_LATENCY_MILLIS} or the client heap usage after garbage collection goes above {@link #MAX_HEAP_USAGE}.
+ * After being halved, the size only grows up to three quarters of the size that failed during the next
+ * {@link #CEILING_BATCHES} batches.
+ */
+public class AdaptiveBatchSize {
+
+    public static final int DEFAULT_MIN = 100;
+    public static final int DEFAULT_MAX = 50_000;
+
+    private static final long MAX_LATENCY_MILLIS = 10_000;
+    private static final double MAX_HEAP_USAGE = 0.85;
+    private static final double TOLERANCE = 0.05;  // throughput changes below 5% are considered noise
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int CEILING_BATCHES = 50;
+
+    //The pool holding the long lived objects, where the usage after a collection tells the live data size
+    private static final MemoryPoolMXBean OLD_GENERATION = getOldGenerationPool();
+
+    private final int min;
+    private final int max;
+    private int size;
+
+    private double lastThroughput = 0;
+    private double peakThroughput = 0;
+    private boolean shrunk = false;  // whether the size has just been halved
+    private int ceiling = 0;         // size that made the last back-off necessary
+    private int ceilingBatches = 0;  // remaining batches during which the ceiling holds
+    private long batches = 0;
+    private long rows = 0;
+    private long millis = 0;
+    private int failures = 0;
+
+    public AdaptiveBatchSize(int min, int max) {
+        if (min < 1 || max < min) throw new IllegalArgumentException("Invalid batch size bounds [" + min + ", " + max + "]");
+        this.min = min;
+        this.max = max;
+        this.size = Math.min(max, Math.max(min, 1_000));
+    }
+
+    /**
+     * @return the number of rows the next batch should contain
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Records a successfully committed batch of {@link #getSize()} rows and adapts the size for the next one
+     *
+     * @param batchRows   number of rows written in the batch
+     * @param batchMillis time taken to write and commit the batch
+     */
+    public void success(int batchRows, long batchMillis) {
+        if (!record(batchRows, batchMillis)) return;
+
+        double throughput = batchRows * 1000d / Math.max(1, batchMillis);
+        peakThroughput = Math.max(peakThroughput, throughput);
+        if (ceilingBatches > 0) ceilingBatches--;
+        if (throughput > lastThroughput * (1 + TOLERANCE)) {
+            grow();
+        } else if (throughput < lastThroughput * (1 - TOLERANCE) && !shrunk) {
+            //Smaller batches are expected to be slower right after a back-off, so that drop is not acted upon
+            size = Math.max(min, size - size / 4);
+        }
+        shrunk = false;
+        lastThroughput = throughput;
+    }
+
+    private void grow() {
+        long grown = size * 2L;
+        if (ceilingBatches > 0) grown = Math.max(size, Math.min(grown, ceiling - ceiling / 4));
+        size = (int) Math.min(max, grown);
+    }
+
+    /**
+     * Records a successfully committed batch with fewer rows than requested (end of input, last rows of a group).
+     * Its throughput does not say much about the best size, so it is only taken into account to back off.
+     */
+    public void partial(int batchRows, long batchMillis) {
+        record(batchRows, batchMillis);
+    }
+
+    /**
+     * @return false when the size has been reduced because of the batch latency or the heap usage
+     */
+    private boolean record(int batchRows, long batchMillis) {
+        batches++;
+        rows += batchRows;
+        millis += batchMillis;
+        if (heapUsage() > MAX_HEAP_USAGE || batchMillis > MAX_LATENCY_MILLIS) {
+            shrink();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a batch that failed with a transient error
+     *
+     * @param attempt number of consecutive failed attempts for the current batch
+     * @return milliseconds to wait before retrying
+     */
+    public long failure(int attempt) {
+        failures++;
+        shrink();
+        return Math.min(MAX_BACKOFF_MILLIS, 100L << Math.min(attempt, 16));
+    }
+
+    private void shrink() {
+        ceiling = size;
+        ceilingBatches = CEILING_BATCHES;
+        size = Math.max(min, size / 2);
+        shrunk = true;
+    }
+
+    /**
+     * Uncollected garbage would make the current heap usage look close to the limit most of the time, so the
+     * usage measured after the last collection of the old generation is used instead
+     */
+    private static double heapUsage() {
+        if (OLD_GENERATION == null) return 0;
+        MemoryUsage usage = OLD_GENERATION.getCollectionUsage();
+        long limit = usage.getMax() > 0 ? usage.getMax() : Runtime.getRuntime().maxMemory();
+        return (double) usage.getUsed() / limit;
+    }
+
+    /**
+     * @return the heap pool with collection usage support and the largest capacity (the old generation for the
+     * generational collectors), or null when there is none
+     */
+    private static MemoryPoolMXBean getOldGenerationPool() {
+        MemoryPoolMXBean rtn = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) continue;
+            if (rtn == null || pool.getUsage().getMax() > rtn.getUsage().getMax()) rtn = pool;
+        }
+        return rtn;
+    }
+
+    /**
+     * @return summary of the batch sizes the controller converged to, for the run report
+     */
+    public String getReport() {
+        return String.format(
+                "batch size converged to %,d rows (bounds %,d-%,d): %,d batches, %,d rows, "
+                        + "%,.0f rows/s on average, %,.0f rows/s peak, %d transient failures",
+                size, min, max, batches, rows, rows * 1000d / Math.max(1, millis), peakThroughput, failures);
+    }
+}
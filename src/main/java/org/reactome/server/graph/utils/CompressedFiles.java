@@ -0,0 +1,66 @@
+package org.reactome.server.graph.utils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Support for the gzip and zip compressed interaction data files as distributed by IntAct.
+ * <p>
+ * The content is inflated to a plain file because the interaction data parser only accepts a file path.
+ */
+public class CompressedFiles {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int ZIP_MAGIC = 0x504b0304;
+
+    public static boolean isGzip(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= 2 && in.readUnsignedShort() == GZIP_MAGIC;
+        }
+    }
+
+    public static boolean isZip(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= 4 && in.readInt() == ZIP_MAGIC;
+        }
+    }
+
+    /**
+     * Compression is detected from the content of the file, so the extension does not matter
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        return isGzip(file) || isZip(file);
+    }
+
+    /**
+     * Decompresses a gzip file or the first file entry of a zip archive
+     *
+     * @param source compressed file
+     * @param target file where the decompressed content is written (overwritten if exists)
+     * @return number of decompressed bytes
+     */
+    public static long decompress(File source, File target) throws IOException {
+        try (InputStream in = open(source)) {
+            return Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static InputStream open(File source) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
+        if (isGzip(source)) return new GZIPInputStream(in, BUFFER_SIZE);
+
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory()) return zip;
+        }
+        zip.close();
+        throw new IOException(source.getPath() + " does not contain any file");
+    }
+}
@@ -0,0 +1,62 @@
+package org.reactome.server.graph.utils;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates high-frequency events of the import so they are logged as periodic summaries instead of
+ * one line per event. Per event detail is expected to be logged at TRACE level by the caller.
+ */
+public class EventCounter {
+
+    private static final long DEFAULT_INTERVAL_MILLIS = 30_000;
+
+    private final Logger logger;
+    private final String event;
+    private final long intervalMillis;
+
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong nextReport;
+    private long reported = 0;
+
+    public EventCounter(Logger logger, String event) {
+        this(logger, event, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param event          description of the counted events, e.g. "species relationships added"
+     * @param intervalMillis minimum time between two summaries
+     */
+    public EventCounter(Logger logger, String event, long intervalMillis) {
+        this.logger = logger;
+        this.event = event;
+        this.intervalMillis = intervalMillis;
+        this.nextReport = new AtomicLong(System.currentTimeMillis() + intervalMillis);
+    }
+
+    public void increment() {
+        count.increment();
+        long next = nextReport.get();
+        long now = System.currentTimeMillis();
+        if (now >= next && nextReport.compareAndSet(next, now + intervalMillis)) summary("so far");
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Logs the final summary
+     */
+    public void report() {
+        summary("in total");
+    }
+
+    private synchronized void summary(String when) {
+        long total = count.sum();
+        logger.info("{} {} {} ({} since the last summary)", total, event, when, total - reported);
+        reported = total;
+    }
+}
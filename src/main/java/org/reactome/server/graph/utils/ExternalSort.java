@@ -0,0 +1,182 @@
+package org.reactome.server.graph.utils;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.BiPredicate;
+
+/**
+ * Sorts files of fixed-width binary records that do not fit in the heap (external merge sort).
+ * <p>
+ * The input is read in runs bounded by {@link #getRunSize(int)}, every run is sorted in memory and written
+ * to a temporary file, and the runs are then merged into the output. The sort is stable, so when duplicates
+ * are dropped the first record (in input order) of every group is the one that is kept.
+ */
+public class ExternalSort {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MIN_RUN_SIZE = 1_024;
+    private static final double HEAP_FRACTION = 0.125;
+
+    /**
+     * @param input      file with the records to be sorted
+     * @param output     file where the sorted records will be written (overwritten if exists)
+     * @param recordSize the fixed size of each record in bytes
+     * @param comparator order of the records
+     * @param duplicate  when not null, consecutive records (in the sorted order) for which it returns true
+     *                   are considered the same and only the first one is written
+     * @return number of records written to the output
+     */
+    public static long sort(File input, File output, int recordSize, Comparator<byte[]> comparator,
+                            BiPredicate<byte[], byte[]> duplicate) throws IOException {
+        return sort(input, output, recordSize, comparator, duplicate, getRunSize(recordSize));
+    }
+
+    /**
+     * @param runSize maximum number of records sorted in memory at once
+     */
+    static long sort(File input, File output, int recordSize, Comparator<byte[]> comparator,
+                     BiPredicate<byte[], byte[]> duplicate, int runSize) throws IOException {
+        List<File> runs = new ArrayList<>();
+        try {
+            try (RecordReader reader = new RecordReader(input, recordSize)) {
+                List<byte[]> run = new ArrayList<>(Math.min(runSize, 1 << 20));
+                byte[] record;
+                while ((record = reader.next()) != null) {
+                    run.add(record);
+                    if (run.size() == runSize) {
+                        runs.add(writeRun(run, recordSize, comparator, output.getParentFile()));
+                        run.clear();
+                    }
+                }
+                if (!run.isEmpty() || runs.isEmpty()) runs.add(writeRun(run, recordSize, comparator, output.getParentFile()));
+            }
+            return merge(runs, output, recordSize, comparator, duplicate);
+        } finally {
+            runs.forEach(File::delete);
+        }
+    }
+
+    /**
+     * Runs take at most {@link #HEAP_FRACTION} of the max heap, taking into account the byte[] header
+     */
+    private static int getRunSize(int recordSize) {
+        long budget = (long) (Runtime.getRuntime().maxMemory() * HEAP_FRACTION);
+        return (int) Math.max(MIN_RUN_SIZE, Math.min(Integer.MAX_VALUE - 8, budget / (recordSize + 32)));
+    }
+
+    private static File writeRun(List<byte[]> run, int recordSize, Comparator<byte[]> comparator, File dir) throws IOException {
+        run.sort(comparator);  // List.sort is stable
+        File file = File.createTempFile("external-sort-", ".run", dir);
+        try (RecordWriter writer = new RecordWriter(file, recordSize, false)) {
+            for (byte[] record : run) writer.write(record);
+        }
+        return file;
+    }
+
+    private static long merge(List<File> runs, File output, int recordSize, Comparator<byte[]> comparator,
+                              BiPredicate<byte[], byte[]> duplicate) throws IOException {
+        List<RecordReader> readers = new ArrayList<>();
+        //Ties are broken by run index to keep the sort stable
+        PriorityQueue<Head> heads = new PriorityQueue<>((h1, h2) -> {
+            int c = comparator.compare(h1.record, h2.record);
+            return c != 0 ? c : Integer.compare(h1.run, h2.run);
+        });
+        long written = 0;
+        try (RecordWriter writer = new RecordWriter(output, recordSize, false)) {
+            for (int i = 0; i < runs.size(); i++) {
+                RecordReader reader = new RecordReader(runs.get(i), recordSize);
+                readers.add(reader);
+                byte[] record = reader.next();
+                if (record != null) heads.add(new Head(record, i));
+            }
+            byte[] last = null;
+            while (!heads.isEmpty()) {
+                Head head = heads.poll();
+                if (last == null || duplicate == null || !duplicate.test(last, head.record)) {
+                    writer.write(head.record);
+                    last = head.record;
+                    written++;
+                }
+                byte[] next = readers.get(head.run).next();
+                if (next != null) heads.add(new Head(next, head.run));
+            }
+        } finally {
+            for (RecordReader reader : readers) reader.close();
+        }
+        return written;
+    }
+
+    private static class Head {
+        private final byte[] record;
+        private final int run;
+
+        Head(byte[] record, int run) {
+            this.record = record;
+            this.run = run;
+        }
+    }
+
+    /**
+     * Sequential writer of fixed-width records
+     */
+    public static class RecordWriter implements Closeable {
+
+        private final OutputStream out;
+        private final int recordSize;
+        private long records = 0;
+
+        public RecordWriter(File file, int recordSize, boolean append) throws IOException {
+            this.out = new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE);
+            this.recordSize = recordSize;
+        }
+
+        public void write(byte[] record) throws IOException {
+            if (record.length != recordSize) {
+                throw new IllegalArgumentException("Record of " + record.length + " bytes where " + recordSize + " were expected");
+            }
+            out.write(record);
+            records++;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Sequential reader of fixed-width records
+     */
+    public static class RecordReader implements Closeable {
+
+        private final DataInputStream in;
+        private final int recordSize;
+
+        public RecordReader(File file, int recordSize) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            this.recordSize = recordSize;
+        }
+
+        /**
+         * @return the next record or null when the end of the file has been reached
+         */
+        public byte[] next() throws IOException {
+            byte[] record = new byte[recordSize];
+            try {
+                in.readFully(record);
+            } catch (EOFException e) {
+                return null;
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
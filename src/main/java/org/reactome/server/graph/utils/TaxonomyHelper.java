@@ -47,35 +47,42 @@ public class TaxonomyHelper {
             HttpURLConnection httpConnection = (HttpURLConnection) connection;
             httpConnection.setRequestProperty("Content-Type", "application/json");
 
-            InputStream response = httpConnection.getInputStream();
+            //The response code has to be checked first, getInputStream throws an IOException for error responses
             int responseCode = httpConnection.getResponseCode();
 
             if (responseCode != 200) {
                 if (responseCode == 429 && httpConnection.getHeaderField("Retry-After") != null) {
                     double sleepFloatingPoint = Double.parseDouble(httpConnection.getHeaderField("Retry-After"));
                     double sleepMillis = 1000 * sleepFloatingPoint;
+                    httpConnection.disconnect();
                     try {
                         Thread.sleep((long) sleepMillis);
                     } catch (InterruptedException e) {
-                        logger.error(e.getMessage(), e);
+                        Thread.currentThread().interrupt();
+                        logger.warn("Interrupted while waiting to look up the taxId {}", taxId);
+                        return null;
                     }
                     return getTaxonomyLineage(taxId);
                 }
-                throw new RuntimeException("Response code was not 200. Detected response was " + responseCode);
+                logger.warn("The species of the taxId {} could not be retrieved, response code was {}", taxId, responseCode);
+                httpConnection.disconnect();
+                return null;
             }
 
-            String StringFromInputStream = IOUtils.toString(response, StandardCharsets.UTF_8);
-            JSONObject jsonObject = new JSONObject(StringFromInputStream);
+            try (InputStream response = httpConnection.getInputStream()) {
+                String StringFromInputStream = IOUtils.toString(response, StandardCharsets.UTF_8);
+                JSONObject jsonObject = new JSONObject(StringFromInputStream);
 
-            int parentTaxId = jsonObject.getJSONObject("parent").getInt("id");
-            response.close();
+                int parentTaxId = jsonObject.getJSONObject("parent").getInt("id");
 
-            if (taxonomyMap.containsKey(parentTaxId)) {
-                Long species = taxonomyMap.get(parentTaxId);
-                taxonomyMap.put(taxId, species);
-                return species;
+                if (taxonomyMap.containsKey(parentTaxId)) {
+                    Long species = taxonomyMap.get(parentTaxId);
+                    taxonomyMap.put(taxId, species);
+                    return species;
+                }
             }
         } catch (IOException | JSONException e) {
+            logger.warn("The species of the taxId {} could not be retrieved: {}", taxId, e.getMessage());
             return null;
         }
         return null;
@@ -0,0 +1,174 @@
+package org.reactome.server.graph.interactors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.neo4j.driver.exceptions.TransientException;
+import org.reactome.server.graph.utils.AdaptiveBatchSize;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalReplayerTest {
+
+    private static final long BASELINE = 100;
+    private static final long NODE_OFFSET = 10_000;  // Neo4j node ID = dbId + NODE_OFFSET
+
+    private static final String[] INTERACTION = {"UndirectedInteraction", "Interaction", "DatabaseObject"};
+    private static final String[] INSTANCE_EDIT = {"InstanceEdit", "DatabaseObject"};
+    private static final String[] PERSON = {"Person", "DatabaseObject"};
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void batchSizeGrowsWithInterleavedGroups() throws IOException {
+        File journal = record(20_000);
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(AdaptiveBatchSize.DEFAULT_MIN, AdaptiveBatchSize.DEFAULT_MAX);
+        int initial = batchSize.getSize();
+
+        try (BufferedReader reader = open(journal)) {
+            new JournalReplayer(journal.getPath(), batchSize).apply(reader, (query, rows) -> { });
+        }
+
+        assertTrue(batchSize.getSize() > initial, batchSize.getReport());
+    }
+
+    @Test
+    void batchSizeStaysReducedAfterFailures() throws IOException {
+        int limit = 2_000;  // the server rejects larger batches
+        File journal = record(20_000);
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(AdaptiveBatchSize.DEFAULT_MIN, AdaptiveBatchSize.DEFAULT_MAX);
+        long[] written = {0};
+        int[] failures = {0};
+
+        try (BufferedReader reader = open(journal)) {
+            new JournalReplayer(journal.getPath(), batchSize).apply(reader, (query, rows) -> {
+                if (rows.size() > limit) {
+                    failures[0]++;
+                    throw new TransientException("Neo.TransientError.General.MemoryPoolOutOfMemoryError", "Out of memory");
+                }
+                //A fixed cost per commit plus a cost per row, so larger batches have a higher throughput
+                sleep(20 + rows.size() / 100);
+                written[0] += rows.size();
+            });
+        }
+
+        //The size that failed is not tried again over and over
+        assertTrue(batchSize.getSize() <= limit, batchSize.getReport());
+        assertTrue(failures[0] <= 5, failures[0] + " failures: " + batchSize.getReport());
+        assertEquals(7L * 20_000 + 2, written[0]);
+    }
+
+    @Test
+    void nodesAreWrittenBeforeTheirRelationships() throws IOException {
+        int interactions = 5_000;
+        File journal = record(interactions);
+        Set<Long> created = new HashSet<>();
+        long[] relationships = {0};
+
+        try (BufferedReader reader = open(journal)) {
+            AdaptiveBatchSize batchSize = new AdaptiveBatchSize(AdaptiveBatchSize.DEFAULT_MIN, AdaptiveBatchSize.DEFAULT_MAX);
+            boolean ended = new JournalReplayer(journal.getPath(), batchSize).apply(reader, (query, rows) -> {
+                if (query.contains("CREATE (n:")) {
+                    rows.forEach(row -> created.add(((Number) row.get(InteractionImporter.DBID)).longValue()));
+                    return;
+                }
+                for (Map<String, Object> row : rows) {
+                    for (String endpoint : new String[]{ImportJournal.FROM, ImportJournal.TO}) {
+                        long dbId = ((Number) row.get(endpoint)).longValue();
+                        assertTrue(dbId <= BASELINE || created.contains(dbId), "Relationship to " + dbId + " written before its node");
+                    }
+                    relationships[0]++;
+                }
+            });
+            assertTrue(ended);
+        }
+
+        assertEquals(2L * interactions + 1, created.size());
+        assertEquals(5L * interactions + 1, relationships[0]);
+    }
+
+    @Test
+    void floatingPointPropertiesKeepTheirType() throws IOException {
+        File journal = record(10);
+        try (BufferedReader reader = open(journal)) {
+            AdaptiveBatchSize batchSize = new AdaptiveBatchSize(AdaptiveBatchSize.DEFAULT_MIN, AdaptiveBatchSize.DEFAULT_MAX);
+            new JournalReplayer(journal.getPath(), batchSize).apply(reader, (query, rows) -> rows.forEach(row -> {
+                if (row.containsKey("score")) assertEquals(1.0, row.get("score"));
+            }));
+        }
+    }
+
+    /**
+     * Records a journal with the same sequence of operations the import performs for every interaction
+     */
+    private File record(int interactions) throws IOException {
+        File file = folder.resolve("interactions.journal").toFile();
+        Map<Long, Long> endpoints = new HashMap<>();
+        for (long dbId = 1; dbId <= BASELINE; dbId++) endpoints.put(dbId + NODE_OFFSET, dbId);
+
+        ImportJournal journal = new ImportJournal(file.getPath());
+        journal.start(BASELINE, endpoints);
+        long person = BASELINE + 1;
+        journal.recordNode(person + NODE_OFFSET, props(person, "Interactions Importer"), PERSON);
+        for (int i = 0; i < interactions; i++) {
+            long interaction = BASELINE + 2 + 2L * i;
+            long instanceEdit = interaction + 1;
+
+            Map<String, Object> props = props(interaction, "Interaction " + i);
+            props.put("score", 1.0);
+            journal.recordNode(interaction + NODE_OFFSET, props, INTERACTION);
+            journal.recordRelationship(interaction + NODE_OFFSET, 1 + NODE_OFFSET, "referenceDatabase", relationship(1));
+            journal.recordNode(instanceEdit + NODE_OFFSET, props(instanceEdit, "Interactions Importer"), INSTANCE_EDIT);
+            journal.recordRelationship(person + NODE_OFFSET, instanceEdit + NODE_OFFSET, "author", relationship(1));
+            journal.recordRelationship(instanceEdit + NODE_OFFSET, interaction + NODE_OFFSET, "created", relationship(1));
+            journal.recordRelationship(interaction + NODE_OFFSET, 1 + (i % BASELINE) + NODE_OFFSET, "interactor", relationship(1));
+            journal.recordRelationship(interaction + NODE_OFFSET, 1 + ((i + 1) % BASELINE) + NODE_OFFSET, "interactor", relationship(2));
+        }
+        journal.recordRelationship(person + NODE_OFFSET, 1 + NODE_OFFSET, "author", relationship(1));
+        journal.complete();
+        return file;
+    }
+
+    private static Map<String, Object> props(long dbId, String name) {
+        Map<String, Object> rtn = new HashMap<>();
+        rtn.put(InteractionImporter.DBID, dbId);
+        rtn.put(InteractionImporter.NAME, name);
+        return rtn;
+    }
+
+    private static Map<String, Object> relationship(int order) {
+        Map<String, Object> rtn = new HashMap<>();
+        rtn.put(InteractionImporter.STOICHIOMETRY, 1);
+        rtn.put(InteractionImporter.ORDER, order);
+        return rtn;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a reader positioned after the journal header
+     */
+    private static BufferedReader open(File journal) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8);
+        reader.readLine();
+        return reader;
+    }
+}
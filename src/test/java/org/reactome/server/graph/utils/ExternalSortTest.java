@@ -0,0 +1,95 @@
+package org.reactome.server.graph.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.reactome.server.graph.utils.ExternalSort.RecordReader;
+import org.reactome.server.graph.utils.ExternalSort.RecordWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExternalSortTest {
+
+    // [key][sequence]
+    private static final int RECORD = 2 * Long.BYTES;
+    private static final int RUN_SIZE = 7;
+
+    private static final Comparator<byte[]> BY_KEY = Comparator.comparingLong(r -> getLong(r, 0));
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void duplicatesKeepTheFirstOccurrenceAcrossRuns() throws IOException {
+        int keys = 10;
+        int records = 100;  // every key appears in several runs
+        File input = write(records, keys);
+        File output = folder.resolve("sorted").toFile();
+
+        long written = ExternalSort.sort(input, output, RECORD, BY_KEY, (r1, r2) -> getLong(r1, 0) == getLong(r2, 0), RUN_SIZE);
+
+        List<byte[]> sorted = read(output);
+        assertEquals(keys, written);
+        assertEquals(keys, sorted.size());
+        for (int i = 0; i < keys; i++) {
+            assertEquals(i, getLong(sorted.get(i), 0));
+            //The first record with key i is the one in position (keys - 1 - i)
+            assertEquals(keys - 1 - i, getLong(sorted.get(i), Long.BYTES));
+        }
+    }
+
+    @Test
+    void sortIsStableAcrossRuns() throws IOException {
+        int keys = 3;
+        int records = 50;
+        File input = write(records, keys);
+        File output = folder.resolve("sorted").toFile();
+
+        long written = ExternalSort.sort(input, output, RECORD, BY_KEY, null, RUN_SIZE);
+
+        List<byte[]> sorted = read(output);
+        assertEquals(records, written);
+        for (int i = 1; i < sorted.size(); i++) {
+            byte[] previous = sorted.get(i - 1);
+            byte[] current = sorted.get(i);
+            assertTrue(getLong(previous, 0) <= getLong(current, 0));
+            if (getLong(previous, 0) == getLong(current, 0)) {
+                assertTrue(getLong(previous, Long.BYTES) < getLong(current, Long.BYTES), "Input order not kept for key " + getLong(current, 0));
+            }
+        }
+    }
+
+    /**
+     * Writes records with descending keys (wrapping every keys records) and their position in the input
+     */
+    private File write(int records, int keys) throws IOException {
+        File file = folder.resolve("input").toFile();
+        try (RecordWriter writer = new RecordWriter(file, RECORD, false)) {
+            for (long i = 0; i < records; i++) {
+                writer.write(ByteBuffer.allocate(RECORD).putLong(keys - 1 - (i % keys)).putLong(i).array());
+            }
+        }
+        return file;
+    }
+
+    private static List<byte[]> read(File file) throws IOException {
+        List<byte[]> rtn = new ArrayList<>();
+        try (RecordReader reader = new RecordReader(file, RECORD)) {
+            byte[] record;
+            while ((record = reader.next()) != null) rtn.add(record);
+        }
+        return rtn;
+    }
+
+    private static long getLong(byte[] record, int offset) {
+        return ByteBuffer.wrap(record, offset, Long.BYTES).getLong();
+    }
+}